@@ -19,6 +19,8 @@ import com.sun.tools.attach.VirtualMachine;
 
 import java.lang.management.ManagementFactory;
 
+import org.matrixer.core.runtime.AgentOptions;
+
 /**
  * Loads an java agent dynamically
  */
@@ -42,4 +44,17 @@ public class AgentLoader {
         vm.loadAgent(jarFilePath, agentArgs);
         vm.detach();
     }
+
+    /**
+     * Removes the probes of an agent that was loaded with the retransform
+     * option, restoring the original classes
+     *
+     * @param jarFilePath
+     *            Path to the agent jar file
+     * @throws Exception
+     *             Throws exception if the agent could not be loaded
+     */
+    public static void detachAgent(String jarFilePath) throws Exception {
+        loadAgent(jarFilePath, AgentOptions.DETACH + "=true");
+    }
 }
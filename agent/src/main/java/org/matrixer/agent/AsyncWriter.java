@@ -0,0 +1,202 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.matrixer.core.runtime.Logger;
+import org.matrixer.core.runtime.MethodCall;
+
+/**
+ * Hands batches of calls over to a daemon thread that writes them to
+ * another writer. Batches that arrive within the flush interval are
+ * grouped into a single write, up to a maximum number of calls.
+ *
+ * Batches are queued under a shared lock that close takes exclusively, so
+ * that every batch queued before close is written before the end marker.
+ * The worker only stops at the end marker, and closes the other writer
+ * itself, so it is never closed while the worker writes to it.
+ */
+public class AsyncWriter implements ResultsWriter {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_FLUSH_SIZE = 8192;
+
+    // Wait at most this long for the queue to drain on close
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    // Tells the worker that no more batches will arrive
+    private static final List<MethodCall> END = new ArrayList<>();
+
+    private final ResultsWriter writer;
+    private final BlockingQueue<List<MethodCall>> queue;
+    private final long flushIntervalNanos;
+    private final int flushSize;
+    private final Logger logger;
+    private final Thread worker;
+
+    // Held shared while queueing, and exclusively while closing
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    public AsyncWriter(ResultsWriter writer, long flushIntervalMs, Logger logger) {
+        this(writer, DEFAULT_QUEUE_SIZE, flushIntervalMs, DEFAULT_FLUSH_SIZE, logger);
+    }
+
+    public AsyncWriter(ResultsWriter writer, int queueSize, long flushIntervalMs, int flushSize,
+            Logger logger) {
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.flushSize = flushSize;
+        this.logger = logger;
+        worker = new Thread(this::run, "matrixer-writer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues the batch for writing. Blocks if the queue is full.
+     *
+     * @throws IOException
+     *             if the writer has been closed, since the underlying writer
+     *             is closed with it
+     */
+    @Override
+    public void write(List<MethodCall> calls) throws IOException {
+        if (calls.isEmpty()) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("AsyncWriter: Closed, dropped a batch of "
+                        + calls.size() + " calls");
+            }
+            putUninterruptibly(calls);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void putUninterruptibly(List<MethodCall> batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes all queued batches and closes the underlying writer
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            putUninterruptibly(END);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!awaitWorker()) {
+            logger.logError("AsyncWriter: Timed out waiting for " + queue.size()
+                    + " batches to be written");
+        }
+    }
+
+    /**
+     * @return true if the worker has written the queue and closed the
+     *         underlying writer
+     */
+    private boolean awaitWorker() {
+        try {
+            worker.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !worker.isAlive();
+    }
+
+    private void run() {
+        List<MethodCall> pending = new ArrayList<>();
+        long deadline = 0;
+        while (true) {
+            List<MethodCall> batch;
+            try {
+                if (pending.isEmpty()) {
+                    batch = queue.take();
+                    deadline = System.nanoTime() + flushIntervalNanos;
+                } else {
+                    batch = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Only the end marker stops the worker, so that no batch is
+                // left in the queue
+                commit(pending);
+                continue;
+            }
+            if (batch == END) {
+                commit(pending);
+                closeWriter();
+                return;
+            }
+            if (batch != null) {
+                pending.addAll(batch);
+            }
+            if (batch == null || pending.size() >= flushSize) {
+                commit(pending);
+            }
+        }
+    }
+
+    private void commit(List<MethodCall> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            writer.write(pending);
+        } catch (IOException | RuntimeException e) {
+            logger.logException(e);
+        }
+        pending.clear();
+    }
+
+    private void closeWriter() {
+        try {
+            writer.close();
+        } catch (IOException | RuntimeException e) {
+            logger.logException(e);
+        }
+    }
+}
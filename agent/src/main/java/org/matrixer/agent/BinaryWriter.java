@@ -0,0 +1,49 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import java.io.*;
+import java.util.List;
+
+import org.matrixer.core.runtime.BinaryEncoder;
+import org.matrixer.core.runtime.MethodCall;
+
+/**
+ * Writes batches of calls in the binary results format
+ */
+public class BinaryWriter implements ResultsWriter {
+
+    private final OutputStream out;
+    private final BinaryEncoder encoder;
+
+    public BinaryWriter(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out);
+        this.encoder = new BinaryEncoder(this.out);
+    }
+
+    @Override
+    public synchronized void write(List<MethodCall> calls) throws IOException {
+        for (MethodCall call : calls) {
+            encoder.write(call);
+        }
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
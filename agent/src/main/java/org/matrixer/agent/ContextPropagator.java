@@ -0,0 +1,149 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import java.util.concurrent.Callable;
+
+import org.matrixer.agent.boot.TaskPropagator;
+import org.matrixer.agent.internal.TaskContext;
+import org.matrixer.core.runtime.Logger;
+
+/**
+ * Runs tasks submitted to executors in the test case that submitted them,
+ * at the stack depth of the submitting call.
+ *
+ * This class implements a bootstrap hook interface and must not be loaded
+ * before the hooks are installed.
+ */
+public class ContextPropagator implements TaskPropagator {
+
+    private final StackRecorderImpl recorder;
+    private final Logger logger;
+
+    public ContextPropagator(StackRecorderImpl recorder, Logger logger) {
+        this.recorder = recorder;
+        this.logger = logger;
+    }
+
+    @Override
+    public Runnable wrap(Runnable task) {
+        try {
+            TaskContext ctx = recorder.captureContext();
+            if (ctx != null && task != null) {
+                return new ContextRunnable(task, ctx, recorder);
+            }
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+        return task;
+    }
+
+    @Override
+    public <V> Callable<V> wrap(Callable<V> task) {
+        try {
+            TaskContext ctx = recorder.captureContext();
+            if (ctx != null && task != null) {
+                return new ContextCallable<>(task, ctx, recorder);
+            }
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+        return task;
+    }
+
+    @Override
+    public void capture(Object task) {
+        try {
+            if (task != null) {
+                recorder.captureTask(task);
+            }
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+    }
+
+    @Override
+    public void beforeRun(Object task) {
+        try {
+            recorder.beginTask(task);
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+    }
+
+    @Override
+    public void afterRun(Object task) {
+        try {
+            recorder.endTask(task);
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+    }
+
+    static class ContextRunnable implements Runnable {
+        private final Runnable task;
+        private final TaskContext ctx;
+        private final StackRecorderImpl recorder;
+
+        ContextRunnable(Runnable task, TaskContext ctx, StackRecorderImpl recorder) {
+            this.task = task;
+            this.ctx = ctx;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void run() {
+            recorder.beginTask(ctx, this);
+            try {
+                task.run();
+            } finally {
+                recorder.endTask(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    static class ContextCallable<V> implements Callable<V> {
+        private final Callable<V> task;
+        private final TaskContext ctx;
+        private final StackRecorderImpl recorder;
+
+        ContextCallable(Callable<V> task, TaskContext ctx, StackRecorderImpl recorder) {
+            this.task = task;
+            this.ctx = ctx;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public V call() throws Exception {
+            recorder.beginTask(ctx, this);
+            try {
+                return task.call();
+            } finally {
+                recorder.endTask(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -16,6 +16,9 @@
 package org.matrixer.agent;
 
 import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -31,6 +34,10 @@ public class InvocationLogger {
     private static StackRecorder recorder;
     private static Logger logger;
 
+    // Links the probes of classes instrumented with switchable probes
+    private static final ProbeSwitch probeSwitch =
+            new ProbeSwitch("pushMethod", "popMethod", "enterMethod");
+
     /**
      * Initializes the logger.
      */
@@ -46,19 +53,60 @@ public class InvocationLogger {
         return recorder;
     }
 
-    public static void pushMethod(String name) {
+    public static ProbeSwitch probeSwitch() {
+        return probeSwitch;
+    }
+
+    /**
+     * Bootstrap method of switchable probes. The probe is bound to the
+     * logger method with the same name while a test case runs.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name,
+            MethodType type) {
+        return probeSwitch.site(name);
+    }
+
+    public static void pushMethod(int methodId) {
         try {
-            long thread = Thread.currentThread().getId();
-            getRecorder().pushMethod(name, thread);
+            getRecorder().pushMethod(methodId);
         } catch (Throwable e) {
             logger.logException(e);
         }
     }
 
-    public static void popMethod(String methodName) {
+    public static void popMethod(int methodId) {
         try {
-            long thread = Thread.currentThread().getId();
-            getRecorder().popMethod(methodName, thread);
+            getRecorder().popMethod(methodId);
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+    }
+
+    /**
+     * Returns the probe array of a class instrumented in probes mode. Called
+     * from the static initializer of the class, so it must not throw.
+     *
+     * @param methodIds
+     *            the method ids of the class, by probe index
+     */
+    public static boolean[] probes(int[] methodIds) {
+        if (recorder == null) {
+            return new boolean[methodIds.length];
+        }
+        try {
+            return recorder.registerProbes(methodIds);
+        } catch (Throwable e) {
+            logger.logException(e);
+            return new boolean[methodIds.length];
+        }
+    }
+
+    /**
+     * Logs a call to a method instrumented in entry mode
+     */
+    public static void enterMethod(int methodId) {
+        try {
+            getRecorder().enterMethod(methodId);
         } catch (Throwable e) {
             logger.logException(e);
         }
@@ -82,6 +130,35 @@ public class InvocationLogger {
         }
     }
 
+    /**
+     * Begins recording the calls of a lifecycle method in the fixture test
+     * case of its class. Called from static initializers, so it must not
+     * throw when the agent is not initialized.
+     */
+    public static void beginFixture(String name) {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            long thread = Thread.currentThread().getId();
+            recorder.beginFixture(name, thread);
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+    }
+
+    public static void endFixture(String name) {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            long thread = Thread.currentThread().getId();
+            recorder.endFixture(name, thread);
+        } catch (Throwable e) {
+            logger.logException(e);
+        }
+    }
+
     public static void newThread(Thread t) {
         // Use explicit instance here, since Threads need to be created even if
         // this class has not been initialized we should not throw.
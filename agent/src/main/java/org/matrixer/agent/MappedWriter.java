@@ -0,0 +1,183 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.matrixer.core.runtime.MethodCall;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Appends batches of calls as text lines to a memory mapped results file.
+ *
+ * Each batch reserves its range of the file with an atomic offset and is
+ * then copied into the mapped chunks covering the range, so threads that
+ * write at the same time do not wait for each other. The file is mapped
+ * in large chunks, which extends it beyond the written data. It is
+ * truncated to the written length when the writer is closed.
+ *
+ * Batches are written under the shared side of a read/write lock, which
+ * close takes exclusively. The file is never truncated while a batch is
+ * copied into a mapped chunk, since a store past the end of the file
+ * crashes the JVM.
+ *
+ * The file is locked while it is mapped, since two processes would map the
+ * same range. Each process must write a file of its own, for instance
+ * with the {pid} placeholder in the destfile option.
+ */
+public class MappedWriter implements ResultsWriter {
+
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    private static final String newLine = System.lineSeparator();
+
+    private final FileChannel channel;
+    private final int chunkSize;
+
+    // The file offset of the first chunk
+    private final long base;
+
+    // The file offset where the next batch is written
+    private final AtomicLong position;
+
+    // Mapped chunks, indexed by their offset from base
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[8];
+
+    // Held shared while writing, and exclusively while closing
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    public MappedWriter(Path file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MappedWriter(Path file, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+        lockFile(file);
+        this.chunkSize = chunkSize;
+        this.base = channel.size();
+        this.position = new AtomicLong(base);
+    }
+
+    private void lockFile(Path file) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            channel.close();
+            throw new IOException("Memory mapped results file " + file
+                    + " is already written by another writer");
+        }
+    }
+
+    @Override
+    public void write(List<MethodCall> calls) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Writer closed");
+            }
+            append(calls);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void append(List<MethodCall> calls) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (MethodCall call : calls) {
+            sb.append(call.asLine()).append(newLine);
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        long offset = position.getAndAdd(bytes.length) - base;
+
+        int written = 0;
+        while (written < bytes.length) {
+            int index = (int) (offset / chunkSize);
+            int chunkOffset = (int) (offset % chunkSize);
+            int length = Math.min(bytes.length - written, chunkSize - chunkOffset);
+            ByteBuffer buffer = chunk(index).duplicate();
+            buffer.position(chunkOffset);
+            buffer.put(bytes, written, length);
+            written += length;
+            offset += length;
+        }
+    }
+
+    private MappedByteBuffer chunk(int index) throws IOException {
+        MappedByteBuffer[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        return mapChunk(index);
+    }
+
+    private synchronized MappedByteBuffer mapChunk(int index) throws IOException {
+        MappedByteBuffer[] current = chunks;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+        } else if (current[index] != null) {
+            return current[index];
+        } else {
+            current = current.clone();
+        }
+        long offset = base + (long) index * chunkSize;
+        current[index] = channel.map(FileChannel.MapMode.READ_WRITE, offset, chunkSize);
+        chunks = current;
+        return current[index];
+    }
+
+    /**
+     * Forces the written data to the file and truncates the file to the
+     * written length
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (MappedByteBuffer chunk : chunks) {
+                if (chunk != null) {
+                    chunk.force();
+                }
+            }
+            // Also releases the file lock
+            channel.truncate(position.get());
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
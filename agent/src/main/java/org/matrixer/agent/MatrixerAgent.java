@@ -17,11 +17,21 @@ package org.matrixer.agent;
 
 import java.io.*;
 import java.lang.instrument.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
+import org.matrixer.agent.instrumentation.BootstrapHooks;
 import org.matrixer.agent.instrumentation.CallLoggingTransformer;
+import org.matrixer.agent.instrumentation.TaskClassTransformer;
 import org.matrixer.agent.instrumentation.ThreadClassTransformer;
+import org.matrixer.agent.internal.MethodRegistry;
 import org.matrixer.core.runtime.*;
 
 import static java.nio.file.StandardOpenOption.APPEND;
@@ -31,20 +41,62 @@ import static java.nio.file.StandardOpenOption.CREATE;
  * MatrixerAgent instruments target classes to record the the call stack
  * depth of their invocations.
  *
- * The agent arguments are specified as a colon separated list of key
- * value pairs on the form key=value:
+ * The agent arguments are specified as a comma separated list of key
+ * value pairs on the form key=value. Options that take a list separate
+ * its values with colons:
  *
  * <pre>
- * debug    - a boolean value that determines if the agent should print debug information
- * destFile - The path to the file where the matrixer data should be stored
- * pkg      - The package name for the classes that should be instrumented
- * testPkg  - Deprecated
- * depth    - An integer value specifying the maximum call stack depth to record
+ * debug         - a boolean value that determines if the agent should print debug information
+ * destfile      - The path to the file where the matrixer data should be stored. {pid} and
+ *                 {fork} are replaced by the process id and the test fork number of the JVM
+ * pkg           - The package name for the classes that should be instrumented
+ * testPkg       - Deprecated
+ * depth         - An integer value specifying the maximum call stack depth to record
+ * async         - Write results on a background thread. Default false
+ * flushInterval - The maximum time in milliseconds the background thread holds on to
+ *                 results. Default 1000
+ * format        - The format of the results, text or binary. Default text
+ * compression   - The compression of the results file, none or gzip. Default none
+ * output        - How results are written, to a file (file), memory mapped (mmap) or to a
+ *                 collector (socket). Default file
+ * address       - The host:port of the collector of socket output. Default localhost:6300
+ * sampleLimit   - How many calls of each method in a test case are recorded, 0 for all.
+ *                 Default 0
+ * sampleRate    - Record one in K calls of each method in a test case. Default 1
+ * filter        - The kinds of methods that are not instrumented: bridge, synthetic,
+ *                 accessors and lambdas
+ * minSize       - The number of instructions a method needs to be instrumented. Default 0
+ * includes      - Patterns of the classes to instrument. Default the classes of pkg
+ * excludes      - Patterns of classes that are not instrumented
+ * cache         - Cache instrumented classes next to the results file. Default false
+ * frames        - Keep the stack map frames of methods (preserve) or compute them all
+ *                 (compute). Default preserve
+ * propagate     - Record tasks run by executors in the test case that submitted them.
+ *                 Default false
+ * fixtures      - Record the calls of test class lifecycle methods. Default false
+ * mode          - How calls are recorded, depth, entry or probes. Default depth
+ * switchable    - Link probes with invokedynamic so they do nothing between test cases.
+ *                 Not supported in probes mode. Default false
+ * retransform   - Instrument classes loaded before the agent was attached. Not supported
+ *                 in probes mode. Default false
+ * detach        - Remove the probes of the running agent instead of starting a new one.
+ *                 Default false
  * </pre>
  */
 public class MatrixerAgent {
 
-    private static MatrixerAgent agent;
+    // The agent that was started last
+    static MatrixerAgent agent;
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    // Set by Gradle in test workers, and by Maven Surefire when it is
+    // configured to pass its fork number on
+    static final String[] FORK_PROPERTIES = {"org.gradle.test.worker", "surefire.forkNumber"};
+
+    // The number of loaded classes retransformed by each call
+    static final int RETRANSFORM_BATCH_SIZE = 64;
 
     /**
      * Run when the agent is started statically
@@ -61,7 +113,9 @@ public class MatrixerAgent {
     }
 
     /**
-     * Run when the agent is started dynamically
+     * Run when the agent is started dynamically. An agent that is attached
+     * again replaces the previous agent, which is detached first, so that
+     * the results file and the shutdown hook are not left behind.
      *
      * @param agentArgs
      *            Agent arguments
@@ -70,19 +124,44 @@ public class MatrixerAgent {
      * @throws IOException
      */
     public static void agentmain(String agentArgs, Instrumentation inst) throws IOException {
+        if (new AgentOptions(agentArgs).getDetach()) {
+            if (agent != null) {
+                agent.detach();
+            }
+            return;
+        }
+        if (agent != null && !agent.detach()) {
+            agent.logger.logError("Agent: Not attaching again, the running agent is kept");
+            return;
+        }
         agent = new MatrixerAgent(agentArgs, inst, "dynamically");
         agent.startup();
     }
 
-    private Logger logger;
+    Logger logger;
 
     final private Instrumentation inst;
 
     final AgentOptions options;
 
+    private CallLoggingTransformer transformer;
+
+    MethodRegistry registry;
+
+    StackRecorderImpl recorder;
+
+    ResultsWriter writer;
+
+    // Closes the writer when the JVM exits, removed when the agent detaches
+    Thread shutdownHook;
+
+    private boolean detached = false;
+
     private MatrixerAgent(String agentArgs, Instrumentation inst, String type) throws IOException {
         this.inst = inst;
         options = new AgentOptions(agentArgs);
+        options.setDestFilename(options.getDestFilename(ProcessHandle.current().pid(),
+                forkNumber()));
         Path destDir = Path.of(options.getDestFilename()).getParent();
         Files.createDirectories(destDir);
         setupLog();
@@ -92,6 +171,19 @@ public class MatrixerAgent {
                 options.getTestPackage()));
     }
 
+    /**
+     * Returns the number that the build tool gave the test JVM, or null
+     */
+    static String forkNumber() {
+        for (String property : FORK_PROPERTIES) {
+            String fork = System.getProperty(property);
+            if (fork != null) {
+                return fork;
+            }
+        }
+        return null;
+    }
+
     private void setupLog() throws IOException {
         if (options.getDebug()) {
             logger = makePrintLogger();
@@ -117,30 +209,192 @@ public class MatrixerAgent {
 
     private void tryStartup() throws IOException, UnmodifiableClassException {
         Path destFile = Path.of(options.getDestFilename());
-        SynchronizedWriter writer = makeWriter(destFile);
-        StackRecorder recorder = new StackRecorderImpl(writer, logger, options);
+        writer = makeWriter(destFile);
+        registry = new MethodRegistry();
+        recorder = new StackRecorderImpl(writer, registry, logger, options);
+        shutdownHook = new Thread(this::shutdown, "matrixer-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        if (options.getSwitchable()) {
+            recorder.setProbeSwitch(InvocationLogger.probeSwitch());
+        }
         InvocationLogger.init(recorder, logger);
-        inst.addTransformer(new CallLoggingTransformer(options, logger));
+        transformer = new CallLoggingTransformer(options, registry, logger);
+        inst.addTransformer(transformer, options.getRetransform());
+        BootstrapHooks.install(inst);
         transformThreadClass(InvocationLogger::newThread);
+        if (options.getPropagate()) {
+            transformTaskClasses(recorder);
+        }
+        if (options.getRetransform()) {
+            List<Class<?>> classes = loadedClasses();
+            log("Retransforming " + classes.size() + " loaded classes");
+            retransform(classes);
+        }
+    }
+
+    /**
+     * Restores the original bytecode of the target and test classes. The
+     * test cases that are running are ended with the calls they have made
+     * so far, and the results writer is closed.
+     *
+     * @return true if the agent is detached
+     */
+    boolean detach() {
+        if (detached) {
+            return true;
+        }
+        if (transformer == null || !options.getRetransform()) {
+            logger.logError("Agent: Only agents started with retransform can be detached");
+            return false;
+        }
+        inst.removeTransformer(transformer);
+        // Without the transformer the classes are retransformed from their
+        // original class files
+        List<Class<?>> classes = loadedClasses();
+        retransform(classes);
+        transformer = null;
+        recorder.endRunningTestCases();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            shutdown();
+        } catch (IllegalStateException e) {
+            // The JVM is exiting, and the hook closes the writer
+        }
+        detached = true;
+        log("Detached from " + classes.size() + " classes");
+        return true;
+    }
+
+    // The loaded classes that the transformer instruments
+    private List<Class<?>> loadedClasses() {
+        Class<?>[] loaded = inst.getAllLoadedClasses();
+        return Arrays.stream(loaded)
+                .filter(inst::isModifiableClass)
+                .filter(transformer::shouldRetransform)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Retransforms the classes in parallel batches. The classes of a batch
+     * that fails are retried one by one, so that one class that cannot be
+     * instrumented does not leave the others as they were.
+     */
+    void retransform(List<Class<?>> classes) {
+        List<Class<?>[]> batches = new ArrayList<>();
+        for (int i = 0; i < classes.size(); i += RETRANSFORM_BATCH_SIZE) {
+            int end = Math.min(classes.size(), i + RETRANSFORM_BATCH_SIZE);
+            batches.add(classes.subList(i, end).toArray(new Class<?>[0]));
+        }
+        batches.parallelStream().forEach(batch -> {
+            try {
+                inst.retransformClasses(batch);
+            } catch (Throwable e) {
+                for (Class<?> cls : batch) {
+                    try {
+                        inst.retransformClasses(cls);
+                    } catch (Throwable e1) {
+                        logger.logError("Agent: Could not retransform " + cls.getName()
+                                + ": " + e1);
+                    }
+                }
+            }
+        });
+    }
+
+    ResultsWriter makeWriter(Path file) throws IOException {
+        if (options.getOutput().equals(AgentOptions.OUTPUT_MMAP)) {
+            log("Writing results to memory mapped file");
+            return new MappedWriter(file);
+        }
+        OutputStream out = options.getOutput().equals(AgentOptions.OUTPUT_SOCKET)
+                ? connect(file)
+                : Files.newOutputStream(file, CREATE, APPEND);
+        if (options.getCompression().equals(AgentOptions.COMPRESSION_GZIP)) {
+            // Each run appends a new gzip member, and every batch is flushed.
+            // A member is only complete once the stream is closed on a clean
+            // shutdown. The file cannot be analyzed after a killed run,
+            // since its member has no trailer.
+            out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true);
+        }
+        ResultsWriter writer;
+        if (options.getFormat().equals(AgentOptions.FORMAT_BINARY)) {
+            writer = new BinaryWriter(out);
+        } else {
+            writer = new SynchronizedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+        if (options.getAsync()) {
+            log("Writing results asynchronously");
+            writer = new AsyncWriter(writer, options.getFlushInterval(), logger);
+        }
+        return writer;
+    }
+
+    /**
+     * Streams the results to the collector. The results file is written
+     * instead if the collector cannot be reached, so that the results are
+     * not lost.
+     */
+    private OutputStream connect(Path file) throws IOException {
+        try {
+            Socket socket = new Socket(options.getHost(), options.getPort());
+            log("Streaming results to " + options.getAddress());
+            return new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_SIZE);
+        } catch (IOException e) {
+            logger.logError("Agent: Could not connect to " + options.getAddress()
+                    + ", writing results to " + file + ": " + e.getMessage());
+            return Files.newOutputStream(file, CREATE, APPEND);
+        }
     }
 
-    SynchronizedWriter makeWriter(Path file) throws IOException {
-        return new SynchronizedWriter(Files.newBufferedWriter(file, CREATE, APPEND));
+    /**
+     * Writes any buffered results before the JVM exits
+     */
+    private void shutdown() {
+        recorder.logSummary();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.logException(e);
+        }
     }
 
     /**
      * The call logging transformer needs to know when new threads are
      * created and the parent thread.
      *
+     * @throws IOException
      * @throws UnmodifiableClassException
      */
-    void transformThreadClass(Consumer<Thread> callback) throws UnmodifiableClassException {
-        ClassFileTransformer cf = new ThreadClassTransformer(callback);
+    void transformThreadClass(Consumer<Thread> callback)
+            throws IOException, UnmodifiableClassException {
+        BootstrapHooks.set(BootstrapHooks.THREAD_HOOK, "onThreadCreate", callback);
+        ClassFileTransformer cf = new ThreadClassTransformer();
         inst.addTransformer(cf, true);
         inst.retransformClasses(Thread.class);
         inst.removeTransformer(cf);
     }
 
+    /**
+     * Makes tasks submitted to executors and fork join pools run in the
+     * test case that submitted them.
+     *
+     * @throws IOException
+     * @throws UnmodifiableClassException
+     */
+    void transformTaskClasses(StackRecorderImpl recorder)
+            throws IOException, UnmodifiableClassException {
+        BootstrapHooks.set(BootstrapHooks.TASK_HOOK, "propagator",
+                new ContextPropagator(recorder, logger));
+        ClassFileTransformer cf = new TaskClassTransformer();
+        inst.addTransformer(cf, true);
+        try {
+            inst.retransformClasses(TaskClassTransformer.CLASSES);
+        } finally {
+            inst.removeTransformer(cf);
+        }
+        log("Propagating test cases to executor tasks");
+    }
+
     private void log(String msg) {
         if (options.getDebug()) {
             logger.log("Agent: " + msg);
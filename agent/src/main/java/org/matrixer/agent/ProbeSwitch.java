@@ -0,0 +1,99 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+/**
+ * Links the probes of classes instrumented with switchable probes.
+ *
+ * Every probe of a kind is bound to the same mutable call site. While no
+ * test case runs the site targets a method that does nothing, which the
+ * JIT compiles away. The site is relinked to the invocation logger when
+ * the first test case begins, and back when the last test case ends.
+ */
+public class ProbeSwitch {
+
+    private static final MethodType PROBE_TYPE = MethodType.methodType(void.class, int.class);
+
+    private final Map<String, MutableCallSite> sites = new HashMap<>();
+    private final Map<String, MethodHandle> targets = new HashMap<>();
+
+    // The test cases that are running
+    private final Set<Object> running = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param names
+     *            the names of the static probe methods of the invocation
+     *            logger, each of type (int)void
+     */
+    public ProbeSwitch(String... names) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (String name : names) {
+            try {
+                targets.put(name,
+                        lookup.findStatic(InvocationLogger.class, name, PROBE_TYPE));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("No probe method " + name, e);
+            }
+            sites.put(name, new MutableCallSite(MethodHandles.empty(PROBE_TYPE)));
+        }
+    }
+
+    /**
+     * Returns the call site that all probes with the name are bound to
+     */
+    public CallSite site(String name) {
+        CallSite site = sites.get(name);
+        if (site == null) {
+            throw new IllegalArgumentException("No probe method " + name);
+        }
+        return site;
+    }
+
+    /**
+     * Arms the probes if no other test case is running
+     */
+    public synchronized void begin(Object testCase) {
+        if (running.add(testCase) && running.size() == 1) {
+            relink(true);
+        }
+    }
+
+    /**
+     * Disarms the probes if no other test case is running
+     */
+    public synchronized void end(Object testCase) {
+        if (running.remove(testCase) && running.isEmpty()) {
+            relink(false);
+        }
+    }
+
+    public synchronized boolean isArmed() {
+        return !running.isEmpty();
+    }
+
+    private void relink(boolean armed) {
+        for (var entry : sites.entrySet()) {
+            MethodHandle target = armed
+                    ? targets.get(entry.getKey())
+                    : MethodHandles.empty(PROBE_TYPE);
+            entry.getValue().setTarget(target);
+        }
+        MutableCallSite.syncAll(sites.values().toArray(new MutableCallSite[0]));
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import org.matrixer.core.runtime.MethodCall;
+
+/**
+ * Writes the calls recorded in a test case to the results file
+ */
+public interface ResultsWriter extends Closeable {
+
+    /**
+     * Writes a batch of calls. The calls are guaranteed to reach the
+     * destination once the writer is closed.
+     *
+     * @param calls
+     *            The calls to write
+     * @throws IOException
+     */
+    public void write(List<MethodCall> calls) throws IOException;
+
+}
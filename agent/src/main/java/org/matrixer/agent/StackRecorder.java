@@ -17,12 +17,16 @@ package org.matrixer.agent;
 
  public interface StackRecorder {
 
-    public void pushMethod(String methodName, long thread);
-    public void popMethod(String methodName, long thread);
+    public void pushMethod(int methodId);
+    public void popMethod(int methodId);
+    public void enterMethod(int methodId);
     public void beginTestCase(String testName, long thread);
     public void endTestCase(String testName, long thread);
+    public void beginFixture(String fixtureName, long thread);
+    public void endFixture(String fixtureName, long thread);
     public void newThread(long parentId, Thread newThread);
     public void setDepthLimit(int depthLimit);
     public int activeThreadCount();
+    public boolean[] registerProbes(int[] methodIds);
 
  }
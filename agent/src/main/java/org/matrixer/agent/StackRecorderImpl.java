@@ -16,9 +16,17 @@
 package org.matrixer.agent;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import org.matrixer.agent.internal.*;
 import org.matrixer.core.runtime.*;
@@ -28,24 +36,87 @@ import org.matrixer.core.runtime.*;
  */
 public class StackRecorderImpl implements StackRecorder {
 
-    // Maps each thread to a stack
+    // Maps each thread to a stack. Only used to find the stack of a thread
+    // when a test case begins or ends, or the first time a child thread
+    // records a call.
     final Map<Long, ThreadStack> threads = new ConcurrentHashMap<>();
 
+    // The stack bound to the current thread, or OUTSIDE if the thread was
+    // found not to be in a test case. A thread only joins a test case by
+    // beginning one or a task, which replace OUTSIDE, or when it is
+    // created, before it can hold OUTSIDE.
+    private final ThreadLocal<ThreadStack> currentStack = new ThreadLocal<>();
+
+    private static final ThreadStack OUTSIDE = new ThreadStack(-1, new TestCase("outside"));
+
+    // The stack a pooled thread last used to run a task, reused by the
+    // next task of the same test case
+    private final ThreadLocal<ThreadStack> taskStack = new ThreadLocal<>();
+
+    // The context a thread inherits from the thread that created it. The
+    // context is computed when the child is created, and only becomes a
+    // stack if the child records a call. Threads that have no context to
+    // adopt hold NONE so that their own children are still given one.
+    private final InheritableThreadLocal<TaskContext> inherited =
+            new InheritableThreadLocal<>() {
+                @Override
+                protected TaskContext childValue(TaskContext parentValue) {
+                    TaskContext ctx = captureContext();
+                    return ctx == null ? TaskContext.NONE : ctx;
+                }
+            };
+
+    // Contexts of tasks that were submitted in a test case but have not
+    // started yet. Tasks are compared by identity, since their equals and
+    // hashCode are user code.
+    final Map<TaskKey, TaskContext> pendingTasks = new ConcurrentHashMap<>();
+
+    // The probe arrays of classes instrumented in probes mode
+    private final ProbeArrays probes = new ProbeArrays();
+
+    // Test cases that have begun but not ended. The probe arrays are only
+    // cleared when no other test case runs, since they are shared.
+    private final AtomicInteger liveTestCases = new AtomicInteger();
+
+    // Whether overlapping test cases in probes mode have been reported
+    private final AtomicBoolean overlapReported = new AtomicBoolean();
+
+    // Arms switchable probes while a test case runs, null if probes are
+    // not switchable
+    private ProbeSwitch probeSwitch;
+
     private int depthLimit = Integer.MAX_VALUE;
 
+    private Sampling sampling = Sampling.ALL;
+
     // The writer to used to write the calls
-    private final SynchronizedWriter writer;
+    private final ResultsWriter writer;
+
+    // Resolves the method ids of the calls when they are written
+    private final MethodRegistry registry;
 
     private final Logger logger;
 
-    public StackRecorderImpl(SynchronizedWriter writer, Logger logger) {
+    // The times a thread began calling target methods outside of a test
+    // case. Only the first call is counted, so that later calls just read
+    // OUTSIDE.
+    private final LongAdder outsideCalls = new LongAdder();
+
+    // Checked before building log messages in the push and pop paths
+    private final boolean logEnabled;
+
+    public StackRecorderImpl(ResultsWriter writer, MethodRegistry registry, Logger logger) {
         this.writer = writer;
+        this.registry = registry;
         this.logger = logger;
+        this.logEnabled = logger.isLogEnabled();
     }
 
-    public StackRecorderImpl(SynchronizedWriter writer, Logger logger, AgentOptions options) {
-        this(writer, logger);
+    public StackRecorderImpl(ResultsWriter writer, MethodRegistry registry, Logger logger,
+            AgentOptions options) {
+        this(writer, registry, logger);
         setDepthLimit(options.getDepthLimit());
+        setSampling(new Sampling(options.getSampleLimit(), options.getSampleRate()));
     }
 
     @Override
@@ -53,26 +124,46 @@ public class StackRecorderImpl implements StackRecorder {
         if (depthLimit == 0) {
             depthLimit = Integer.MAX_VALUE;
         }
-        log("New depth limit: " + depthLimit);
         this.depthLimit = depthLimit;
+        log(() -> "New depth limit: " + this.depthLimit);
     }
 
     public int getDepthLimit() {
         return depthLimit;
     }
 
+    /**
+     * Arms the switchable probes only while a test case runs
+     */
+    public void setProbeSwitch(ProbeSwitch probeSwitch) {
+        this.probeSwitch = probeSwitch;
+    }
+
+    /**
+     * Sets which calls of each method are sampled in test cases that begin
+     * after this call
+     */
+    public void setSampling(Sampling sampling) {
+        log(() -> "New sampling, sample all: " + sampling.samplesAll());
+        this.sampling = sampling;
+    }
+
     @Override
     public void newThread(long parent, Thread t) {
         long childId = t.getId();
-        log("New thread " + childId + " started by " + parent);
+        log(() -> "New thread " + childId + " started by " + parent);
+        if (VirtualThreads.isVirtual(t)) {
+            // Inherits the context without a map entry
+            return;
+        }
 
         ThreadStack parentStack = threads.get(parent);
         if (parentStack == null) {
-            log("No parent thread found for thread " + childId);
+            log(() -> "No parent thread found for thread " + childId);
             // New parent thread
             // Test case threads will be added by beginTestCase()
         } else {
-            log("Found parent thread " + parentStack.id());
+            log(() -> "Found parent thread " + parentStack.id());
             // The childstack inherits the stackdepth of its parent
             ThreadStack childStack = new ThreadStack(childId, parentStack);
             threads.put(childId, childStack);
@@ -81,18 +172,76 @@ public class StackRecorderImpl implements StackRecorder {
 
     @Override
     public void beginTestCase(String name, long thread) {
-        log("::Starting test case:: " + name + " in thread " + thread);
+        log(() -> "::Starting test case:: " + name + " in thread " + thread);
 
-        TestCase tc = new TestCase(name);
+        TestCase tc = new TestCase(name, sampling);
+        if (liveTestCases.incrementAndGet() == 1) {
+            probes.reset();
+        } else if (probes.size() > 0 && !overlapReported.getAndSet(true)) {
+            logError("Test case " + name + " overlaps another test case. Probes mode"
+                    + " cannot tell their calls apart, so each is attributed to the test"
+                    + " case that ends first. Run test cases one at a time or use mode=depth.");
+        }
+        if (probeSwitch != null) {
+            probeSwitch.begin(tc);
+        }
         ThreadStack parentStack = new ThreadStack(thread, tc);
         threads.put(thread, parentStack);
+        if (thread == Thread.currentThread().getId()) {
+            currentStack.set(parentStack);
+            inherited.set(TaskContext.NONE);
+        }
+    }
+
+
+    /**
+     * Begins a fixture test case on the thread, unless the thread is
+     * already in a test case. Each call of a lifecycle method writes the
+     * calls it made under the fixture name.
+     */
+    @Override
+    public void beginFixture(String name, long thread) {
+        ThreadStack stack = threads.get(thread);
+        if (stack != null && !stack.isReleased()) {
+            return;
+        }
+        beginTestCase(name, thread);
     }
 
+    /**
+     * Ends the fixture test case if the thread is running it
+     */
+    @Override
+    public void endFixture(String name, long thread) {
+        ThreadStack stack = threads.get(thread);
+        if (stack != null && stack.mappedTestCase().name().equals(name)) {
+            endTestCase(stack.mappedTestCase());
+        }
+    }
+
+    /**
+     * @return the number of times a thread began calling target methods
+     *         outside of any test case
+     */
+    public long outsideCalls() {
+        return outsideCalls.sum();
+    }
+
+    /**
+     * Reports the calls that were made outside of test cases. Called once
+     * when the agent shuts down instead of reporting each call.
+     */
+    public void logSummary() {
+        long calls = outsideCalls.sum();
+        if (calls > 0) {
+            logError(calls + " times a thread called target methods outside of test cases");
+        }
+    }
 
     public void endTestCase(long thread) {
         ThreadStack stack = threads.get(thread);
         TestCase tc = stack.mappedTestCase();
-        log("::End current test:: " + tc.name() + " on thread " + thread);
+        log(() -> "::End current test:: " + tc.name() + " on thread " + thread);
         endTestCase(tc);
     }
 
@@ -103,8 +252,13 @@ public class StackRecorderImpl implements StackRecorder {
 
     @Override
     public void endTestCase(String name, long thread) {
-        log("::Ending test case:: " + name + " on thread " + thread);
+        log(() -> "::Ending test case:: " + name + " on thread " + thread);
         ThreadStack stack = threads.get(thread);
+        if (stack == null) {
+            // Ended when the agent detached
+            log(() -> "No test case to end on thread " + thread);
+            return;
+        }
         TestCase tc = stack.mappedTestCase();
         if (!name.equals(tc.name())) {
             throw new IllegalStateException("Found wrong test case");
@@ -116,79 +270,294 @@ public class StackRecorderImpl implements StackRecorder {
         if (tc == null) {
             throw new IllegalStateException("endTestCase: Could not find test case ");
         }
-        removeTestCase(tc);
+        if (!removeTestCase(tc)) {
+            return;
+        }
+        harvestProbes(tc);
         writeCalls(tc);
     }
 
+    /**
+     * Ends the test cases that are running and writes the calls they have
+     * made so far. The calls of the threads that began them are read while
+     * those threads may still record, so they are a best effort.
+     */
+    public void endRunningTestCases() {
+        Set<TestCase> running = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ThreadStack stack : threads.values()) {
+            if (!stack.isReleased()) {
+                running.add(stack.mappedTestCase());
+            }
+        }
+        for (TestCase tc : running) {
+            log(() -> "Ending running test case " + tc.name());
+            endTestCase(tc);
+        }
+    }
+
+    /**
+     * Creates the probe array of a class instrumented in probes mode
+     */
+    @Override
+    public boolean[] registerProbes(int[] methodIds) {
+        return probes.register(methodIds);
+    }
+
+    // Probes carry no depth and are shared by the tests that run at the
+    // same time
+    private void harvestProbes(TestCase tc) {
+        if (probes.size() == 0) {
+            return;
+        }
+        CoverageMap hits = new CoverageMap();
+        probes.harvest(hits, MethodCall.NO_DEPTH);
+        tc.merge(hits);
+    }
+
     private void writeCalls(TestCase tc) {
         try {
-            Collection<Call> calls = tc.calls();
-            int size = 0;
-            for (var call : calls) {
-                String line =
-                        new MethodCall(call.stackDepth, call.calledMethod, tc.name()).asLine();
-                log("Writing line:\n\t" + line);
-                writer.writeLine(line);
-                size++;
+            CoverageMap calls = tc.coverage();
+            int size = calls.size();
+            List<MethodCall> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                String methodName = registry.name(calls.methodId(i));
+                int depth = calls.depth(i);
+                MethodCall call = new MethodCall(depth, methodName, tc.name(), depth,
+                        calls.count(i));
+                if (logEnabled) {
+                    log("Writing line:\n\t" + call.asLine());
+                }
+                batch.add(call);
             }
-            log("TestCase: " + tc.name() + "\n\tWrote " + size + " calls\n");
+            writer.write(batch);
+            log(() -> "TestCase: " + tc.name() + "\n\tWrote " + size + " calls\n");
         } catch (IOException e) {
             logger.logException(e);
         }
     }
 
 
-    private void removeTestCase(TestCase tc) {
+    // Returns false if another thread already ended the test case
+    private boolean removeTestCase(TestCase tc) {
+        if (!tc.end()) {
+            return false;
+        }
+        liveTestCases.decrementAndGet();
+        if (probeSwitch != null) {
+            probeSwitch.end(tc);
+        }
         unmapThreads(tc);
+        if (!pendingTasks.isEmpty()) {
+            // Tasks that were rejected or cancelled before they ran
+            pendingTasks.values().removeIf(ctx -> ctx.test() == tc);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the test case and depth of the current thread. Only looks the
+     * thread up, so that creating threads and submitting tasks outside of
+     * test cases is not counted as calls outside of test cases.
+     *
+     * @return the context, or null if the thread is not in a test case
+     */
+    public TaskContext captureContext() {
+        ThreadStack stack = currentStack.get();
+        if (stack == OUTSIDE) {
+            return null;
+        }
+        if (stack == null || stack.isReleased()) {
+            stack = threads.get(Thread.currentThread().getId());
+        }
+        if (stack == null || stack.isReleased()) {
+            TaskContext ctx = inherited.get();
+            if (ctx == null || ctx == TaskContext.NONE || ctx.test().isEnded()) {
+                return null;
+            }
+            return ctx;
+        }
+        return new TaskContext(stack.mappedTestCase(), stack.depth());
+    }
+
+    /**
+     * Remembers the context of the current thread until the task begins
+     */
+    public void captureTask(Object task) {
+        TaskContext ctx = captureContext();
+        if (ctx != null) {
+            pendingTasks.put(new TaskKey(task), ctx);
+        }
+    }
+
+    /**
+     * Runs the current thread in the context captured for the task, if any,
+     * until {@link #endTask(Object)} is called
+     */
+    public void beginTask(Object task) {
+        if (pendingTasks.isEmpty()) {
+            return;
+        }
+        TaskContext ctx = pendingTasks.remove(new TaskKey(task));
+        if (ctx != null) {
+            beginTask(ctx, task);
+        }
+    }
+
+    /**
+     * Runs the current thread in the given context until
+     * {@link #endTask(Object)} is called with the same task
+     */
+    public void beginTask(TaskContext ctx, Object task) {
+        ThreadStack previous = currentStack.get();
+        ThreadStack stack = taskStack(ctx.test());
+        stack.beginTask(task, ctx.depth(), previous);
+        currentStack.set(stack);
+        if (inherited.get() == null) {
+            inherited.set(TaskContext.NONE);
+        }
+        log(() -> "Running task of " + ctx.test().name() + " on thread " + stack.id());
+    }
+
+    private ThreadStack taskStack(TestCase tc) {
+        ThreadStack cached = taskStack.get();
+        if (cached != null && !cached.runsTask() && !cached.isReleased()
+                && cached.mappedTestCase() == tc) {
+            return cached;
+        }
+        ThreadStack stack = new ThreadStack(Thread.currentThread().getId(),
+                new TaskContext(tc, 0), false);
+        // A task run while another task waits on this thread gets a stack
+        // of its own
+        if (cached == null || !cached.runsTask()) {
+            taskStack.set(stack);
+        }
+        return stack;
+    }
+
+    /**
+     * Restores the stack the current thread had before the task began
+     */
+    public void endTask(Object task) {
+        ThreadStack stack = currentStack.get();
+        if (stack == null || !stack.runsTask(task)) {
+            return;
+        }
+        ThreadStack previous = stack.endTask();
+        if (previous == null) {
+            currentStack.remove();
+        } else {
+            currentStack.set(previous);
+        }
     }
 
     private void unmapThreads(TestCase tc) {
-        log("Test case " + tc.name());
+        log(() -> "Test case " + tc.name());
         for (var threadStack : tc.threads()) {
-            log("Removing thread " + threadStack.id());
+            log(() -> "Removing thread " + threadStack.id());
+            threadStack.release();
             threads.remove(threadStack.id(), threadStack);
         }
+        currentStack.remove();
+    }
+
+    /**
+     * Returns the stack bound to the current thread. The stack is looked up
+     * in the thread map, or created from the inherited context, the first
+     * time the thread records a call in a test case, and then kept in a
+     * thread local until the test case ends. A thread outside of test
+     * cases keeps OUTSIDE, so its calls only read the thread local.
+     *
+     * @return the stack, or null if the thread is not in a test case
+     */
+    private ThreadStack currentStack() {
+        ThreadStack stack = currentStack.get();
+        if (stack == OUTSIDE) {
+            return null;
+        }
+        if (stack == null || stack.isReleased()) {
+            stack = threads.get(Thread.currentThread().getId());
+            if (stack == null) {
+                stack = inheritedStack();
+            }
+            if (stack == null) {
+                outsideCalls.increment();
+                currentStack.set(OUTSIDE);
+            } else {
+                currentStack.set(stack);
+            }
+        }
+        return stack;
     }
 
-    // For testing
-    void pushMethod(String methodName) {
-        pushMethod(methodName, Thread.currentThread().getId());
+    /**
+     * Creates a stack for the context inherited by the current thread. The
+     * stacks of virtual threads are detached from the test case, so that
+     * they are reclaimed with the thread.
+     */
+    private ThreadStack inheritedStack() {
+        TaskContext ctx = inherited.get();
+        if (ctx == null || ctx == TaskContext.NONE) {
+            return null;
+        }
+        inherited.set(TaskContext.NONE);
+        if (ctx.test().isEnded()) {
+            return null;
+        }
+        Thread t = Thread.currentThread();
+        ThreadStack stack = new ThreadStack(t.getId(), ctx, VirtualThreads.isVirtual(t));
+        log(() -> "Thread " + stack.id() + " inherited " + ctx.test().name());
+        return stack;
     }
 
     @Override
-    public void pushMethod(String methodName, long thread) {
-        log("::Entering method:: " + methodName + " on thread " + thread);
-        ThreadStack stack = threads.get(thread);
+    public void pushMethod(int methodId) {
+        ThreadStack stack = currentStack();
+        if (logEnabled) {
+            log("::Entering method:: " + methodId + " on thread "
+                    + Thread.currentThread().getId());
+        }
         if (stack == null) {
-            // throw new IllegalStateException("Could not find test case " +
-            // methodName);
-            logError("PushMethod: Test case not found for thread " + thread);
             return;
         }
-        TestCase tc = stack.mappedTestCase();
+        // The stack is pushed even if the call is not recorded, since the
+        // depth of the calls it makes depends on it
         int currentDepth = stack.push();
-        if (currentDepth <= depthLimit) {
-            tc.addCall(methodName, currentDepth);
-            log("TestCase " + tc.name() + " Logging call (d=" + currentDepth + "): " + methodName
-                    + " on thread " + thread);
+        if (currentDepth <= depthLimit && stack.sample(methodId)) {
+            stack.record(methodId, currentDepth);
+            if (logEnabled) {
+                log("TestCase " + stack.mappedTestCase().name() + " Logging call (d="
+                        + currentDepth + "): " + methodId + " on thread " + stack.id());
+            }
         }
     }
 
-    void logPopMethod(String methodName) {
-        popMethod(methodName, Thread.currentThread().getId());
+    @Override
+    public void popMethod(int methodId) {
+        // The stack was bound when the method was pushed
+        ThreadStack stack = currentStack.get();
+        if (logEnabled) {
+            log("::Exiting method:: " + methodId + " on thread "
+                    + Thread.currentThread().getId());
+        }
+        if (stack == null || stack == OUTSIDE || stack.isReleased()) {
+            return;
+        }
+        stack.pop();
     }
 
+    /**
+     * Records a call without a depth. The stack is not pushed, since the
+     * exit of the method is not logged, and the depth limit does not apply.
+     */
     @Override
-    public void popMethod(String methodName, long thread) {
-        log("::Exiting method:: " + methodName + " on thread " + thread);
-        ThreadStack stack = threads.get(thread);
+    public void enterMethod(int methodId) {
+        ThreadStack stack = currentStack();
         if (stack == null) {
-            // throw new IllegalStateException("Could not find test case " +
-            // methodName);
-            logError("PopMethod: Test case not found for thread" + thread);
             return;
         }
-        stack.pop();
+        if (stack.sample(methodId)) {
+            stack.recordEntry(methodId, MethodCall.NO_DEPTH);
+        }
     }
 
     @Override
@@ -203,4 +572,31 @@ public class StackRecorderImpl implements StackRecorder {
     private void log(String msg) {
         logger.log("InvocationLogger " + msg);
     }
+
+    private void log(Supplier<String> msg) {
+        if (logEnabled) {
+            log(msg.get());
+        }
+    }
+
+    /**
+     * Compares tasks by identity
+     */
+    static final class TaskKey {
+        private final Object task;
+
+        TaskKey(Object task) {
+            this.task = task;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TaskKey && ((TaskKey) obj).task == task;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(task);
+        }
+    }
 }
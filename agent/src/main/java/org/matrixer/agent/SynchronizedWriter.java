@@ -16,13 +16,16 @@
 package org.matrixer.agent;
 
 import java.io.*;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.matrixer.core.runtime.MethodCall;
+
 /**
  * A wrapper class around a Writer that makes the writes atomic
  */
-public class SynchronizedWriter extends BufferedWriter {
+public class SynchronizedWriter extends BufferedWriter implements ResultsWriter {
     private static String newLine = System.lineSeparator();
 
     Lock lock = new ReentrantLock();
@@ -113,6 +116,23 @@ public class SynchronizedWriter extends BufferedWriter {
         }
     }
 
+    /**
+     * Writes a batch of calls as lines and flushes once
+     */
+    @Override
+    public void write(List<MethodCall> calls) throws IOException {
+        lock();
+        try {
+            for (MethodCall call : calls) {
+                super.write(call.asLine());
+                super.write(newLine);
+            }
+            super.flush();
+        } finally {
+            unlock();
+        }
+    }
+
     @Override
     public String toString() {
         lock();
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.boot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Called by the instrumented executors and tasks of java.util.concurrent
+ * to carry the test case of the submitting thread over to the thread that
+ * runs the task.
+ *
+ * Like {@link ThreadHook} this class is loaded by the bootstrap class
+ * loader and must only depend on classes in java.base.
+ */
+public final class TaskHook implements TaskPropagator {
+
+    /** Receives the calls from the instrumented classes */
+    public static volatile TaskPropagator propagator = new TaskHook();
+
+    private TaskHook() {
+    }
+
+    /**
+     * Called when a runnable is submitted to a fork join pool, which runs
+     * fork join tasks as they are
+     */
+    public static Runnable submitForkJoin(Runnable task) {
+        if (task instanceof ForkJoinTask) {
+            propagator.capture(task);
+            return task;
+        }
+        return propagator.wrap(task);
+    }
+
+    /**
+     * Called when a callable is submitted to a fork join pool
+     */
+    public static <V> Callable<V> submit(Callable<V> task) {
+        return propagator.wrap(task);
+    }
+
+    /**
+     * Called when a fork join task is forked or submitted, or a runnable is
+     * submitted to a thread pool executor. The task keeps its identity, so
+     * that the executor can still remove it from its queue.
+     */
+    public static void fork(Object task) {
+        propagator.capture(task);
+    }
+
+    /**
+     * Called when a future task or fork join task starts running
+     */
+    public static void run(Object task) {
+        propagator.beforeRun(task);
+    }
+
+    /**
+     * Called when a future task or fork join task has run
+     */
+    public static void done(Object task) {
+        propagator.afterRun(task);
+    }
+
+    /**
+     * Called by a worker of a thread pool executor instead of running the
+     * task directly
+     */
+    public static void runTask(Runnable task) {
+        propagator.beforeRun(task);
+        try {
+            task.run();
+        } finally {
+            propagator.afterRun(task);
+        }
+    }
+
+    @Override
+    public Runnable wrap(Runnable task) {
+        return task;
+    }
+
+    @Override
+    public <V> Callable<V> wrap(Callable<V> task) {
+        return task;
+    }
+
+    @Override
+    public void capture(Object task) {
+    }
+
+    @Override
+    public void beforeRun(Object task) {
+    }
+
+    @Override
+    public void afterRun(Object task) {
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.boot;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Captures the context of submitted tasks and restores it around
+ * their execution
+ */
+public interface TaskPropagator {
+
+    /**
+     * @return a runnable that runs the task in the current context
+     */
+    Runnable wrap(Runnable task);
+
+    /**
+     * @return a callable that runs the task in the current context
+     */
+    <V> Callable<V> wrap(Callable<V> task);
+
+    /**
+     * Remembers the current context for a task that is run later
+     * without being wrapped
+     */
+    void capture(Object task);
+
+    /**
+     * Called by a thread before it runs a task
+     */
+    void beforeRun(Object task);
+
+    /**
+     * Called by a thread after it has run a task
+     */
+    void afterRun(Object task);
+}
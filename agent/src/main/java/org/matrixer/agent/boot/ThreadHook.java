@@ -0,0 +1,40 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.boot;
+
+import java.util.function.Consumer;
+
+/**
+ * Holds the callback invoked by the instrumented Thread constructors.
+ *
+ * This class is appended to the bootstrap class path so that it is
+ * visible from java.lang.Thread, and must therefore only depend on
+ * classes in java.base. The field is never null, so the injected code is
+ * just a field read and an interface call.
+ */
+public final class ThreadHook implements Consumer<Thread> {
+
+    /** Called with every newly constructed thread */
+    public static volatile Consumer<Thread> onThreadCreate = new ThreadHook();
+
+    private ThreadHook() {
+    }
+
+    @Override
+    public void accept(Thread t) {
+        // Threads created before the agent has installed its callback
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Makes the hook classes called from instrumented JDK classes visible to
+ * the bootstrap class loader.
+ *
+ * The hook classes must not be loaded by the agent before they are
+ * installed, since they would then be defined by the application class
+ * loader instead.
+ */
+public class BootstrapHooks {
+
+    public static final String THREAD_HOOK = "org/matrixer/agent/boot/ThreadHook";
+    public static final String TASK_HOOK = "org/matrixer/agent/boot/TaskHook";
+
+    private static final String[] CLASSES = {
+        THREAD_HOOK, TASK_HOOK, "org/matrixer/agent/boot/TaskPropagator"
+    };
+
+    private static boolean installed = false;
+
+    /**
+     * Appends the hook classes to the bootstrap class path and lets
+     * java.base read them.
+     *
+     * @throws IOException
+     *             if the hook classes could not be appended
+     */
+    public static synchronized void install(Instrumentation inst) throws IOException {
+        if (installed) {
+            return;
+        }
+        inst.appendToBootstrapClassLoaderSearch(new JarFile(writeJar().toFile()));
+        // java.base does not read the unnamed module of the boot loader
+        Module base = Thread.class.getModule();
+        Module hooks = load(THREAD_HOOK).getModule();
+        if (!base.canRead(hooks)) {
+            inst.redefineModule(base, Set.of(hooks), Map.of(), Map.of(), Set.of(), Map.of());
+        }
+        installed = true;
+    }
+
+    /**
+     * Sets a static field of an installed hook class
+     *
+     * @throws IOException
+     *             if the field could not be set
+     */
+    public static void set(String hookClass, String field, Object value) throws IOException {
+        try {
+            load(hookClass).getField(field).set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Could not set " + hookClass + "." + field, e);
+        }
+    }
+
+    private static Class<?> load(String hookClass) throws IOException {
+        try {
+            return Class.forName(hookClass.replace('/', '.'), true, null);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Hook class not on the bootstrap class path", e);
+        }
+    }
+
+    private static Path writeJar() throws IOException {
+        Path jar = Files.createTempFile("matrixer-boot", ".jar");
+        jar.toFile().deleteOnExit();
+        ClassLoader loader = BootstrapHooks.class.getClassLoader();
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (String name : CLASSES) {
+                String entry = name + ".class";
+                try (InputStream in = loader.getResourceAsStream(entry)) {
+                    if (in == null) {
+                        throw new IOException("Missing " + entry);
+                    }
+                    out.putNextEntry(new JarEntry(entry));
+                    in.transferTo(out);
+                    out.closeEntry();
+                }
+            }
+        }
+        return jar;
+    }
+}
@@ -18,9 +18,17 @@ package org.matrixer.agent.instrumentation;
 import java.lang.instrument.ClassFileTransformer;
 import java.net.URL;
 import java.security.CodeSource;
+import java.nio.file.Path;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 import org.matrixer.agent.MatrixerAgent;
+import org.matrixer.agent.internal.MethodRegistry;
 import org.matrixer.core.runtime.AgentOptions;
 import org.matrixer.core.runtime.Logger;
 import org.objectweb.asm.*;
@@ -36,24 +44,67 @@ public class CallLoggingTransformer implements ClassFileTransformer {
 
     private static final int VERSION = Opcodes.ASM9;
 
-    private String pkg;
+    // Created next to the results file
+    public static final String CACHE_DIR = "matrixer-cache";
+
+    // Maven surefire places test classes in target/test-classes and target
+    // classes in target/classes. Gradle preserves the hierarchy in src/
+    private static final Pattern TEST_LOCATION = Pattern.compile(".*/(test|test-classes)/.*");
+
+    private ClassFilter classFilter;
     private Instrumenter instrumenter;
+
+    // Instrumented classes, null if caching is disabled
+    private ClassCache cache;
+
+    // Whether classes that are already loaded are instrumented when they
+    // are retransformed
+    private boolean retransform = false;
+
+    // Whether the classes loaded from a location are test classes
+    private final Map<String, Boolean> testLocations = new ConcurrentHashMap<>();
     private Logger logger;
 
-    public CallLoggingTransformer(AgentOptions options, Logger logger) {
-        this(options.getTargetPackage(), logger);
+    public CallLoggingTransformer(AgentOptions options, MethodRegistry registry, Logger logger) {
+        this(classFilter(options), registry, new MethodFilter(options), logger);
+        instrumenter.setComputeFrames(options.getFrames().equals(AgentOptions.FRAMES_COMPUTE));
+        instrumenter.setFixtures(options.getFixtures());
+        instrumenter.setMode(options.getMode());
+        instrumenter.setSwitchable(options.getSwitchable());
+        retransform = options.getRetransform();
+        if (options.getCache()) {
+            Path dir = Path.of(options.getDestFilename()).resolveSibling(CACHE_DIR);
+            String settings = new MethodFilter(options) + ",frames=" + options.getFrames()
+                    + ",fixtures=" + options.getFixtures() + ",mode=" + options.getMode()
+                    + ",switchable=" + options.getSwitchable();
+            cache = new ClassCache(dir, settings, registry, logger);
+        }
     }
 
     public CallLoggingTransformer(String pkg, Logger logger) {
-        this.pkg = pkg;
-        this.instrumenter = new Instrumenter(false);
+        this(pkg, new MethodRegistry(), logger);
+    }
+
+    public CallLoggingTransformer(String pkg, MethodRegistry registry, Logger logger) {
+        this(pkg, registry, MethodFilter.NONE, logger);
+    }
+
+    public CallLoggingTransformer(String pkg, MethodRegistry registry, MethodFilter filter,
+            Logger logger) {
+        this(packageFilter(pkg), registry, filter, logger);
+    }
+
+    public CallLoggingTransformer(ClassFilter classFilter, MethodRegistry registry,
+            MethodFilter filter, Logger logger) {
+        this.classFilter = classFilter;
+        this.instrumenter = new Instrumenter(registry, filter, false);
         this.logger = logger;
     }
 
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
             ProtectionDomain protectionDomain, byte[] classfileBuffer) {
 
-        if (classBeingRedefined != null) {
+        if (classBeingRedefined != null && !retransform) {
             // Already loaded class
             return null;
         }
@@ -62,19 +113,49 @@ public class CallLoggingTransformer implements ClassFileTransformer {
         if (!shouldTransform(location, loader, className)) {
             return null;
         }
-        if (isTestClass(className, location)) {
-            log("Instrumenting test   " + className);
-            return instrumenter.instrumentTestClass(VERSION, className, classfileBuffer);
+        boolean test = isTestClass(className, location);
+        if (cache == null) {
+            return instrument(test, loader, className, classfileBuffer, null);
+        }
+        String key = cache.key(test, classfileBuffer);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            log(() -> "Cached " + className);
+            return cached;
+        }
+        List<String> methodNames = new ArrayList<>();
+        byte[] instrumented = instrument(test, loader, className, classfileBuffer, methodNames);
+        cache.put(key, instrumented, methodNames);
+        return instrumented;
+    }
+
+    private byte[] instrument(boolean test, ClassLoader loader, String className,
+            byte[] classfileBuffer, List<String> methodNames) {
+        if (test) {
+            log(() -> "Instrumenting test   " + className);
+            return instrumenter.instrumentTestClass(VERSION, className, classfileBuffer, loader);
+        }
+        log(() -> "Instrumenting target " + className);
+        return instrumenter.instrumentTargetClass(VERSION, className, classfileBuffer, loader,
+                methodNames);
+    }
+
+    /**
+     * Returns true if a class that is already loaded would have been
+     * instrumented if it was loaded after the agent started
+     */
+    public boolean shouldRetransform(Class<?> cls) {
+        try {
+            URL location = getLocation(cls.getProtectionDomain());
+            return shouldTransform(location, cls.getClassLoader(), toVMName(cls.getName()));
+        } catch (SecurityException e) {
+            return false;
         }
-        log("Instrumenting target " + className);
-        return instrumenter.instrumentTargetClass(VERSION, className, classfileBuffer);
     }
 
     boolean isTestClass(String className, URL location) {
-        // Maven surefire places test classes in target/test-classes and target
-        // classes in
-        // target/classes. Gradle preserves the hierarchy in src/
-        return location.getFile().matches(".*/(test|test-classes)/.*");
+        return testLocations.computeIfAbsent(location.getFile(),
+                file -> TEST_LOCATION.matcher(file).matches());
     }
 
     boolean shouldTransform(URL location, final ClassLoader loader, String classname) {
@@ -87,7 +168,23 @@ public class CallLoggingTransformer implements ClassFileTransformer {
             // do distinguish test cases
             return false;
         }
-        return !classname.startsWith(AGENT_PREFIX) && classname.startsWith(toVMName(pkg));
+        return !classname.startsWith(AGENT_PREFIX) && classFilter.matches(classname);
+    }
+
+    /**
+     * Includes the classes matching the include patterns, or the target
+     * package if there are none
+     */
+    static ClassFilter classFilter(AgentOptions options) {
+        List<String> includes = options.getIncludes();
+        if (includes.isEmpty()) {
+            includes = List.of(options.getTargetPackage() + "*");
+        }
+        return new ClassFilter(includes, options.getExcludes());
+    }
+
+    static ClassFilter packageFilter(String pkg) {
+        return new ClassFilter(List.of(pkg + "*"), List.of());
     }
 
     URL getLocation(ProtectionDomain protectionDomain) {
@@ -111,8 +208,8 @@ public class CallLoggingTransformer implements ClassFileTransformer {
         return classname.replace('/', '.');
     }
 
-    private void log(String msg) {
-        logger.log("Transformer: " + msg);
+    private void log(Supplier<String> msg) {
+        logger.log(() -> "Transformer: " + msg.get());
     }
 
     private void logError(String msg) {
@@ -0,0 +1,358 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.matrixer.agent.MatrixerAgent;
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Caches instrumented classes by a hash of their original bytes, the agent
+ * version and the instrumentation options.
+ *
+ * The memory layer returns the same bytes when a class is loaded by
+ * several class loaders. The disk layer is shared by every JVM that writes
+ * to the same output directory. Method ids are only valid in the JVM that
+ * assigned them, so a disk entry stores the name of each id used in its
+ * probes, and the probes are rewritten to the ids of the current registry
+ * when the entry is loaded. Entries that have not been used for a while,
+ * and the least recently used entries beyond a total size, are deleted
+ * when a cache is created.
+ */
+public class ClassCache {
+
+    private static final int MAGIC = 0x4d584343;
+
+    private static final String PROBE_OWNER = "org/matrixer/agent/InvocationLogger";
+
+    static final long MAX_DISK_SIZE = 256L * 1024 * 1024;
+    static final Duration MAX_AGE = Duration.ofDays(30);
+
+    private final Map<String, byte[]> memory = new ConcurrentHashMap<>();
+    private final Path dir;
+    private final String version;
+    private final MethodRegistry registry;
+    private final Logger logger;
+
+    /**
+     * @param dir
+     *            the directory of the disk layer, or null to only cache in
+     *            memory
+     * @param options
+     *            describes the options that affect instrumentation
+     */
+    public ClassCache(Path dir, String options, MethodRegistry registry, Logger logger) {
+        String agent = agentVersion();
+        if (agent == null && dir != null) {
+            logger.logError("ClassCache: Unknown agent version, only caching in memory");
+            dir = null;
+        }
+        this.dir = dir;
+        this.version = agent + "|" + options;
+        this.registry = registry;
+        this.logger = logger;
+        prune(MAX_DISK_SIZE, MAX_AGE);
+    }
+
+    /**
+     * Deletes the disk entries older than the maximum age, and the least
+     * recently used entries beyond the maximum size. Other JVMs may prune
+     * the same directory, so missing files are skipped.
+     */
+    void prune(long maxSize, Duration maxAge) {
+        if (dir == null || !Files.isDirectory(dir)) {
+            return;
+        }
+        Map<Path, BasicFileAttributes> entries = new HashMap<>();
+        try (var files = Files.list(dir)) {
+            files.forEach(file -> {
+                try {
+                    entries.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+                } catch (IOException e) {
+                    // Deleted by another JVM
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            logger.logError("ClassCache: Could not list " + dir + ": " + e);
+            return;
+        }
+        List<Path> newestFirst = new ArrayList<>(entries.keySet());
+        newestFirst.sort(Comparator.comparing(
+                (Path file) -> entries.get(file).lastModifiedTime()).reversed());
+        long oldest = System.currentTimeMillis() - maxAge.toMillis();
+        long size = 0;
+        for (Path file : newestFirst) {
+            BasicFileAttributes attributes = entries.get(file);
+            size += attributes.size();
+            if (size > maxSize || attributes.lastModifiedTime().toMillis() < oldest) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Deleted or in use by another JVM
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the key of a class
+     *
+     * @param test
+     *            true if the class is instrumented as a test class
+     */
+    public String key(boolean test, byte[] classBytes) {
+        MessageDigest digest = sha256();
+        digest.update(version.getBytes());
+        digest.update((byte) (test ? 1 : 0));
+        digest.update(classBytes);
+        return hex(digest.digest());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the instrumented bytes stored with the key, or null
+     */
+    public byte[] get(String key) {
+        byte[] bytes = memory.get(key);
+        if (bytes != null || dir == null) {
+            return bytes;
+        }
+        Path file = dir.resolve(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            bytes = readEntry(file);
+        } catch (IOException | RuntimeException e) {
+            logger.logError("ClassCache: Could not read " + file + ": " + e);
+            return null;
+        }
+        memory.putIfAbsent(key, bytes);
+        try {
+            // Keeps the entry from being pruned as the least recently used
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Pruned by another JVM
+        }
+        return bytes;
+    }
+
+    /**
+     * Stores instrumented bytes
+     *
+     * @param methodNames
+     *            the names of the methods registered for the probes of the
+     *            class
+     */
+    public void put(String key, byte[] bytes, Collection<String> methodNames) {
+        memory.putIfAbsent(key, bytes);
+        if (dir == null) {
+            return;
+        }
+        Path file = dir.resolve(key);
+        if (Files.exists(file)) {
+            return;
+        }
+        try {
+            writeEntry(file, bytes, methodNames);
+        } catch (IOException e) {
+            logger.logError("ClassCache: Could not write " + file + ": " + e);
+        }
+    }
+
+    private void writeEntry(Path file, byte[] bytes, Collection<String> methodNames)
+            throws IOException {
+        Files.createDirectories(dir);
+        // Written to a temporary file first since other JVMs may read it
+        Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+        try (var out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(methodNames.size());
+            for (var name : methodNames) {
+                out.writeInt(registry.register(name));
+                out.writeUTF(name);
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            if (!Files.exists(file)) {
+                throw e;
+            }
+        }
+    }
+
+    private byte[] readEntry(Path file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cache entry");
+            }
+            Map<Integer, Integer> ids = new HashMap<>();
+            boolean same = true;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int oldId = in.readInt();
+                int newId = registry.register(in.readUTF());
+                ids.put(oldId, newId);
+                same &= oldId == newId;
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return same ? bytes : remap(bytes, ids);
+        }
+    }
+
+    /**
+     * Rewrites the method id loaded before each probe, and the method ids
+     * stored by the method that creates the probe array
+     */
+    static byte[] remap(byte[] bytes, Map<Integer, Integer> ids) {
+        ClassReader cr = new ClassReader(bytes);
+        ClassNode cn = new ClassNode();
+        cr.accept(cn, 0);
+        for (MethodNode method : cn.methods) {
+            List<AbstractInsnNode> loads = new ArrayList<>();
+            boolean init = method.name.equals(LoggingClassAdapter.PROBE_INIT);
+            for (AbstractInsnNode insn : method.instructions) {
+                if (isProbe(insn) || (init && insn.getOpcode() == Opcodes.IASTORE)) {
+                    loads.add(insn.getPrevious());
+                }
+            }
+            for (AbstractInsnNode load : loads) {
+                Integer id = ids.get(intValue(load));
+                if (id == null) {
+                    throw new IllegalStateException("Unknown method id " + intValue(load));
+                }
+                method.instructions.set(load, pushInt(id));
+            }
+        }
+        ClassWriter cw = new ClassWriter(0);
+        cn.accept(cw);
+        return cw.toByteArray();
+    }
+
+    private static boolean isProbe(AbstractInsnNode insn) {
+        if (insn.getOpcode() == Opcodes.INVOKEDYNAMIC) {
+            InvokeDynamicInsnNode call = (InvokeDynamicInsnNode) insn;
+            return call.bsm.getOwner().equals(PROBE_OWNER) && call.desc.equals("(I)V");
+        }
+        if (insn.getOpcode() != Opcodes.INVOKESTATIC) {
+            return false;
+        }
+        MethodInsnNode call = (MethodInsnNode) insn;
+        return call.owner.equals(PROBE_OWNER) && call.desc.equals("(I)V");
+    }
+
+    private static int intValue(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        if (opcode >= Opcodes.ICONST_0 && opcode <= Opcodes.ICONST_5) {
+            return opcode - Opcodes.ICONST_0;
+        }
+        if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+            return ((IntInsnNode) insn).operand;
+        }
+        if (opcode == Opcodes.LDC) {
+            return (Integer) ((LdcInsnNode) insn).cst;
+        }
+        throw new IllegalStateException("Probe without method id");
+    }
+
+    // Same encoding as LoggingMethodAdapter
+    private static AbstractInsnNode pushInt(int value) {
+        if (value <= 5) {
+            return new InsnNode(Opcodes.ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    /**
+     * Returns the version of the agent, or a hash of the agent jar or class
+     * files if the version is not known
+     *
+     * @return the version, or null if the agent classes could not be read
+     */
+    static String agentVersion() {
+        String version = MatrixerAgent.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+        try {
+            CodeSource source = MatrixerAgent.class.getProtectionDomain().getCodeSource();
+            return digest(Path.of(source.getLocation().toURI()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Hashes a jar, or the names and contents of the files in a directory
+    private static String digest(Path location) throws IOException {
+        List<Path> files;
+        try (var walk = Files.walk(location)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[8192];
+        for (Path file : files) {
+            digest.update(location.relativize(file).toString().getBytes());
+            try (InputStream in = Files.newInputStream(file)) {
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, length);
+                }
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
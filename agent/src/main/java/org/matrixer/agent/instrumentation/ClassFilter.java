@@ -0,0 +1,58 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.util.Collection;
+
+/**
+ * Decides which classes are instrumented from include and exclude glob
+ * patterns. Patterns use '.' to separate packages and are matched against
+ * VM class names, e.g. "org.matrixer.*" matches "org/matrixer/Sample".
+ */
+public class ClassFilter {
+
+    private final PatternTrie includes = new PatternTrie();
+    private final PatternTrie excludes = new PatternTrie();
+
+    /**
+     * @param includes
+     *            patterns of the classes to instrument
+     * @param excludes
+     *            patterns of classes that are not instrumented even if they
+     *            are included
+     */
+    public ClassFilter(Collection<String> includes, Collection<String> excludes) {
+        for (var pattern : includes) {
+            this.includes.add(toVMName(pattern));
+        }
+        for (var pattern : excludes) {
+            this.excludes.add(toVMName(pattern));
+        }
+    }
+
+    /**
+     * @param className
+     *            a VM class name
+     * @return true if the class is included and not excluded
+     */
+    public boolean matches(String className) {
+        return includes.matches(className) && !excludes.matches(className);
+    }
+
+    private static String toVMName(String pattern) {
+        return pattern.replace('.', '/');
+    }
+}
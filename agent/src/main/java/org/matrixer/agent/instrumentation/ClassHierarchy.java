@@ -0,0 +1,147 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Resolves super classes by reading class files as resources instead of
+ * loading the classes. Results are cached per class loader. Classes that
+ * cannot be found are not cached, since a later loader may find them.
+ */
+public class ClassHierarchy {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final ClassInfo UNKNOWN = new ClassInfo(null, false);
+
+    private final Map<ClassLoader, Map<String, ClassInfo>> loaders = new WeakHashMap<>();
+    private final Map<String, ClassInfo> bootstrap = new ConcurrentHashMap<>();
+
+    /**
+     * Finds the closest common super class of two classes. Returns
+     * java/lang/Object if either is an interface.
+     *
+     * @throws TypeNotFoundException
+     *             if a class in either hierarchy cannot be found, since a
+     *             frame merging it into java/lang/Object could fail
+     *             verification
+     *
+     * @param loader
+     *            the loader of the class being instrumented, or null for
+     *            the bootstrap loader
+     */
+    public String commonSuperClass(String type1, String type2, ClassLoader loader) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        List<String> supers1 = superClasses(type1, loader);
+        List<String> supers2 = superClasses(type2, loader);
+        if (supers1 == null || supers2 == null) {
+            return OBJECT;
+        }
+        for (String type : supers2) {
+            if (supers1.contains(type)) {
+                return type;
+            }
+        }
+        return OBJECT;
+    }
+
+    /**
+     * Returns the class followed by its super classes, or null if it is an
+     * interface
+     */
+    private List<String> superClasses(String type, ClassLoader loader) {
+        List<String> supers = new ArrayList<>();
+        while (type != null) {
+            ClassInfo info = info(type, loader);
+            if (info == UNKNOWN) {
+                throw new TypeNotFoundException(type);
+            }
+            if (info.isInterface) {
+                return null;
+            }
+            supers.add(type);
+            type = info.superName;
+        }
+        return supers;
+    }
+
+    private ClassInfo info(String type, ClassLoader loader) {
+        Map<String, ClassInfo> cache = cache(loader);
+        ClassInfo info = cache.get(type);
+        if (info == null) {
+            info = read(type, loader);
+            if (info != UNKNOWN) {
+                cache.put(type, info);
+            }
+        }
+        return info;
+    }
+
+    private Map<String, ClassInfo> cache(ClassLoader loader) {
+        if (loader == null) {
+            return bootstrap;
+        }
+        synchronized (loaders) {
+            return loaders.computeIfAbsent(loader, l -> new ConcurrentHashMap<>());
+        }
+    }
+
+    private static ClassInfo read(String type, ClassLoader loader) {
+        String resource = type + ".class";
+        try (InputStream in = loader != null
+                ? loader.getResourceAsStream(resource)
+                : ClassLoader.getSystemResourceAsStream(resource)) {
+            if (in == null) {
+                return UNKNOWN;
+            }
+            ClassReader cr = new ClassReader(in);
+            return new ClassInfo(cr.getSuperName(), (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        } catch (IOException | RuntimeException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Thrown when a class needed to compute frames cannot be found
+     */
+    static class TypeNotFoundException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        TypeNotFoundException(String type) {
+            super("Class not found: " + type);
+        }
+    }
+
+    private static class ClassInfo {
+        final String superName;
+        final boolean isInterface;
+
+        ClassInfo(String superName, boolean isInterface) {
+            this.superName = superName;
+            this.isInterface = isInterface;
+        }
+    }
+}
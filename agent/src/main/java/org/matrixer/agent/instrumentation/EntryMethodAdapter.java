@@ -0,0 +1,50 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Logs the entry of a method. The method is not wrapped, so its exits and
+ * the depth of its calls are not recorded.
+ */
+public class EntryMethodAdapter extends MethodVisitor {
+
+    // The id assigned to the method by the method registry
+    private final int methodId;
+
+    private boolean switchable = false;
+
+    public EntryMethodAdapter(int api, MethodVisitor mv, int methodId) {
+        super(api, mv);
+        this.methodId = methodId;
+    }
+
+    /**
+     * Link the probe with invokedynamic so that it can be switched off.
+     * Requires a Java 7 class.
+     */
+    public void switchable() {
+        switchable = true;
+    }
+
+    @Override
+    public void visitCode() {
+        super.visitCode();
+        LoggingMethodAdapter.pushInt(mv, methodId);
+        LoggingMethodAdapter.invokeLogger(mv, "enterMethod", switchable);
+    }
+}
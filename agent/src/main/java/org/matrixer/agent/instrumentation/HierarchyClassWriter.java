@@ -0,0 +1,40 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A class writer that computes frames without loading classes
+ */
+class HierarchyClassWriter extends ClassWriter {
+
+    private final ClassHierarchy hierarchy;
+    private final ClassLoader loader;
+
+    HierarchyClassWriter(ClassReader cr, int flags, ClassHierarchy hierarchy,
+            ClassLoader loader) {
+        super(cr, flags);
+        this.hierarchy = hierarchy;
+        this.loader = loader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        return hierarchy.commonSuperClass(type1, type2, loader);
+    }
+}
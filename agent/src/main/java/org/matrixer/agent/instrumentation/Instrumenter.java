@@ -16,37 +16,157 @@
 package org.matrixer.agent.instrumentation;
 
 import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
 
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.AgentOptions;
 import org.objectweb.asm.*;
 import org.objectweb.asm.util.*;
 
+/**
+ * Adds probes to classes.
+ *
+ * The original frames are kept and the probes only add the frame of the
+ * exception handler wrapping each method, so classes are written with
+ * COMPUTE_MAXS. All frames are computed only if keeping them fails or
+ * computing is requested. The common super classes needed for that are
+ * resolved by reading class files, not by loading classes. If a class in
+ * the hierarchy cannot be found, the original frames are kept, or the
+ * class is left uninstrumented if they cannot be kept.
+ */
 public class Instrumenter {
 
+    private final MethodRegistry registry;
+    private final MethodFilter filter;
     private final boolean debug;
 
-    public Instrumenter(boolean debug) {
+    private final ClassHierarchy hierarchy = new ClassHierarchy();
+    private boolean computeFrames = false;
+    private boolean fixtures = false;
+    private String mode = AgentOptions.MODE_DEPTH;
+    private boolean switchable = false;
+
+    public Instrumenter(MethodRegistry registry, MethodFilter filter, boolean debug) {
+        this.registry = registry;
+        this.filter = filter;
         this.debug = debug;
     }
 
-    public Instrumenter() {
-        this.debug = false;
+    public Instrumenter(MethodRegistry registry, boolean debug) {
+        this(registry, MethodFilter.NONE, debug);
+    }
+
+    public Instrumenter(MethodRegistry registry) {
+        this(registry, false);
+    }
+
+    /**
+     * Recompute all frames instead of keeping the original frames
+     */
+    public void setComputeFrames(boolean computeFrames) {
+        this.computeFrames = computeFrames;
+    }
+
+    /**
+     * Record the calls made by lifecycle methods of test classes in a
+     * fixture test case per class
+     */
+    public void setFixtures(boolean fixtures) {
+        this.fixtures = fixtures;
+    }
+
+    /**
+     * Sets how calls are recorded. Depth mode logs the entry and exit of
+     * each method, entry mode only logs the entry, and probes mode sets a
+     * flag in a probe array of the class when a method is entered.
+     */
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Link the probes of the depth and entry modes with invokedynamic, so
+     * that they can be switched off while no test case runs
+     */
+    public void setSwitchable(boolean switchable) {
+        this.switchable = switchable;
     }
 
     public byte[] instrumentTestClass(int VERSION, String className, byte[] classfileBuffer) {
+        return instrumentTestClass(VERSION, className, classfileBuffer,
+                ClassLoader.getSystemClassLoader());
+    }
+
+    public byte[] instrumentTestClass(int VERSION, String className, byte[] classfileBuffer,
+            ClassLoader loader) {
         ClassReader cr = new ClassReader(classfileBuffer);
-        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
-        ClassVisitor parent = getParentClassVisitor(cw);
-        ClassVisitor cv = new TestCaseClassAdapter(VERSION, parent, className);
-        cr.accept(cv, 0);
-        return cw.toByteArray();
+        return instrument(cr, loader, parent -> new TestCaseClassAdapter(VERSION, parent,
+                className, fixtures));
     }
 
     public byte[] instrumentTargetClass(int VERSION, String className, byte[] classfileBuffer) {
+        return instrumentTargetClass(VERSION, className, classfileBuffer, null);
+    }
+
+    public byte[] instrumentTargetClass(int VERSION, String className, byte[] classfileBuffer,
+            Collection<String> methodNames) {
+        return instrumentTargetClass(VERSION, className, classfileBuffer,
+                ClassLoader.getSystemClassLoader(), methodNames);
+    }
+
+    /**
+     * Instruments a target class
+     *
+     * @param loader
+     *            the loader of the class, used to resolve super classes
+     * @param methodNames
+     *            receives the names of the methods that probes were added
+     *            for, may be null
+     */
+    public byte[] instrumentTargetClass(int VERSION, String className, byte[] classfileBuffer,
+            ClassLoader loader, Collection<String> methodNames) {
         ClassReader cr = new ClassReader(classfileBuffer);
-        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
-        ClassVisitor parent = getParentClassVisitor(cw);
-        ClassVisitor cv = new LoggingClassAdapter(VERSION, parent, className);
-        cr.accept(cv, 0);
+        Map<String, String> lambdas = filter.mapLambdas()
+                ? LambdaScanner.scan(VERSION, cr)
+                : Map.of();
+        // The adapter of the last pass
+        LoggingClassAdapter[] adapter = new LoggingClassAdapter[1];
+        byte[] result = instrument(cr, loader, parent -> {
+            adapter[0] = new LoggingClassAdapter(VERSION, parent, className, registry, filter,
+                    lambdas, mode);
+            adapter[0].setSwitchable(switchable);
+            return adapter[0];
+        });
+        if (methodNames != null) {
+            methodNames.addAll(adapter[0].methodNames());
+        }
+        return result;
+    }
+
+    private byte[] instrument(ClassReader cr, ClassLoader loader,
+            Function<ClassVisitor, ClassVisitor> adapter) {
+        if (!computeFrames) {
+            try {
+                return transform(cr, ClassWriter.COMPUTE_MAXS, loader, adapter);
+            } catch (RuntimeException e) {
+                // The original frames could not be kept
+            }
+            return transform(cr, ClassWriter.COMPUTE_FRAMES, loader, adapter);
+        }
+        try {
+            return transform(cr, ClassWriter.COMPUTE_FRAMES, loader, adapter);
+        } catch (ClassHierarchy.TypeNotFoundException e) {
+            // Computed frames could fail verification
+            return transform(cr, ClassWriter.COMPUTE_MAXS, loader, adapter);
+        }
+    }
+
+    private byte[] transform(ClassReader cr, int flags, ClassLoader loader,
+            Function<ClassVisitor, ClassVisitor> adapter) {
+        ClassWriter cw = new HierarchyClassWriter(cr, flags, hierarchy, loader);
+        cr.accept(adapter.apply(getParentClassVisitor(cw)), 0);
         return cw.toByteArray();
     }
 
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.*;
+
+/**
+ * Finds the method each lambda body in a class is declared in
+ */
+public class LambdaScanner extends ClassVisitor {
+
+    private static final String METAFACTORY = "java/lang/invoke/LambdaMetafactory";
+
+    private String className;
+
+    // Lambda body -> the method creating the lambda, as name + descriptor
+    private final Map<String, String> declaredIn = new HashMap<>();
+
+    public LambdaScanner(int api) {
+        super(api);
+    }
+
+    /**
+     * Scans a class
+     *
+     * @return a map from the name and descriptor of each lambda body to the
+     *         name and descriptor of the method it is declared in. Lambdas
+     *         declared in other lambdas are mapped to the outermost method.
+     */
+    public static Map<String, String> scan(int api, ClassReader cr) {
+        LambdaScanner scanner = new LambdaScanner(api);
+        cr.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return scanner.enclosingMethods();
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+            String[] interfaces) {
+        className = name;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+            String[] exceptions) {
+        String method = name + desc;
+        return new MethodVisitor(api) {
+            @Override
+            public void visitInvokeDynamicInsn(String name, String desc, Handle bsm,
+                    Object... bsmArgs) {
+                if (!bsm.getOwner().equals(METAFACTORY) || bsmArgs.length < 2
+                        || !(bsmArgs[1] instanceof Handle)) {
+                    return;
+                }
+                Handle body = (Handle) bsmArgs[1];
+                if (body.getOwner().equals(className) && body.getName().startsWith("lambda$")) {
+                    declaredIn.put(body.getName() + body.getDesc(), method);
+                }
+            }
+        };
+    }
+
+    Map<String, String> enclosingMethods() {
+        Map<String, String> result = new HashMap<>();
+        for (var lambda : declaredIn.keySet()) {
+            String method = declaredIn.get(lambda);
+            // Bounded in case of a cycle, which javac never generates
+            for (int i = 0; i < declaredIn.size() && declaredIn.containsKey(method); i++) {
+                method = declaredIn.get(method);
+            }
+            result.put(lambda, method);
+        }
+        return result;
+    }
+}
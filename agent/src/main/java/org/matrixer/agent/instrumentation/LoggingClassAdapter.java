@@ -15,32 +15,246 @@
  */
 package org.matrixer.agent.instrumentation;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.AgentOptions;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
 
 public class LoggingClassAdapter extends ClassVisitor {
 
+    /**
+     * The field holding the probe array of a class in probes mode
+     */
+    public static final String PROBE_FIELD = "$matrixerProbes";
+    public static final String PROBE_DESC = "[Z";
+
+    /**
+     * The method that creates the probe array of a class in probes mode
+     */
+    public static final String PROBE_INIT = "$matrixerInit";
+    private static final String PROBE_INIT_DESC = "()[Z";
+
     String className;
     private static final String pathSeparator = System.getProperty("file.separator");
 
-    public LoggingClassAdapter(int version, ClassVisitor cv, String className) {
+    private final MethodRegistry registry;
+    private final MethodFilter filter;
+
+    // Lambda bodies mapped to the method they are declared in
+    private final Map<String, String> lambdas;
+
+    // The names registered for the probes added to the class
+    private final List<String> methodNames = new ArrayList<>();
+
+    // The ids of the methods, by probe index
+    private final List<Integer> methodIds = new ArrayList<>();
+
+    // Whether method entries set a flag in a probe array instead of calling
+    // the invocation logger
+    private boolean probes;
+
+    // Whether only method entries are logged
+    private final boolean entryOnly;
+
+    // Whether the logger is called through invokedynamic
+    private boolean switchable = false;
+
+    public LoggingClassAdapter(int version, ClassVisitor cv, String className,
+            MethodRegistry registry) {
+        this(version, cv, className, registry, MethodFilter.NONE, Map.of());
+    }
+
+    public LoggingClassAdapter(int version, ClassVisitor cv, String className,
+            MethodRegistry registry, MethodFilter filter, Map<String, String> lambdas) {
+        this(version, cv, className, registry, filter, lambdas, AgentOptions.MODE_DEPTH);
+    }
+
+    /**
+     * @param mode
+     *            how calls are recorded, one of the modes of
+     *            {@link AgentOptions#getMode()}
+     */
+    public LoggingClassAdapter(int version, ClassVisitor cv, String className,
+            MethodRegistry registry, MethodFilter filter, Map<String, String> lambdas,
+            String mode) {
         super(version, cv);
         this.className = className.replaceAll(pathSeparator, ".");
+        this.registry = registry;
+        this.filter = filter;
+        this.lambdas = lambdas;
+        this.probes = mode.equals(AgentOptions.MODE_PROBES);
+        this.entryOnly = mode.equals(AgentOptions.MODE_ENTRY);
+    }
+
+    /**
+     * Link the probes with invokedynamic so that they do nothing while no
+     * test case runs. Classes older than Java 7 are linked statically.
+     */
+    public void setSwitchable(boolean switchable) {
+        this.switchable = switchable;
+    }
+
+    private boolean frames = true;
+    private String owner;
+    private boolean isInterface;
+    private boolean privateInit;
+    private boolean hasClinit = false;
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+            String[] interfaces) {
+        frames = (version & 0xFFFF) >= Opcodes.V1_6;
+        switchable &= (version & 0xFFFF) >= Opcodes.V1_7;
+        owner = name;
+        isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+        // Interfaces can only have static methods from Java 8 and private
+        // methods from Java 9
+        privateInit = !isInterface || (version & 0xFFFF) >= Opcodes.V9;
+        if (isInterface && (version & 0xFFFF) < Opcodes.V1_8) {
+            probes = false;
+        }
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String sign,
             String[] exceptions) {
 
+        if (probes && name.equals("<clinit>")) {
+            hasClinit = true;
+            return new MethodVisitor(api, super.visitMethod(access, name, desc, sign,
+                    exceptions)) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    initProbes(mv);
+                }
+            };
+        }
         // Does not work for (static/non-static) constructors
         if (name.equals("<init>") || name.equals("<clinit>")) {
             return super.visitMethod(access, name, desc, sign, exceptions);
         }
-        MethodVisitor mv = super.visitMethod(access, name, desc, sign, exceptions);
-        return new LoggingMethodAdapter(api, mv, qualifiedMethodName(name, desc));
+        MethodVisitor target = super.visitMethod(access, name, desc, sign, exceptions);
+        String enclosing = lambdas.get(name + desc);
+        if (enclosing == null && filter.skipByAccess(access)) {
+            return target;
+        }
+        String methodName = enclosing != null
+                ? qualifiedMethodName(enclosing)
+                : qualifiedMethodName(name + desc);
+        if (!filter.needsBody()) {
+            return adapter(target, methodName);
+        }
+        // Buffer the method until its body is known
+        return new MethodNode(api, access, name, desc, sign, exceptions) {
+            @Override
+            public void visitEnd() {
+                if (filter.isTrivial(this)) {
+                    accept(target);
+                } else {
+                    accept(adapter(target, methodName));
+                }
+            }
+        };
+    }
+
+    private MethodVisitor adapter(MethodVisitor target, String methodName) {
+        if (probes) {
+            register(methodName);
+            return new ProbeMethodAdapter(api, target, owner, methodNames.indexOf(methodName));
+        }
+        if (entryOnly) {
+            EntryMethodAdapter adapter = new EntryMethodAdapter(api, target, register(methodName));
+            if (switchable) {
+                adapter.switchable();
+            }
+            return adapter;
+        }
+        LoggingMethodAdapter adapter =
+                new LoggingMethodAdapter(api, target, methodName, register(methodName));
+        if (!frames) {
+            adapter.skipFrames();
+        }
+        if (switchable) {
+            adapter.switchable();
+        }
+        return adapter;
+    }
+
+    private int register(String methodName) {
+        int id = registry.register(methodName);
+        if (!methodNames.contains(methodName)) {
+            methodNames.add(methodName);
+            methodIds.add(id);
+        }
+        return id;
+    }
+
+    @Override
+    public void visitEnd() {
+        if (probes) {
+            addProbes();
+        }
+        super.visitEnd();
+    }
+
+    // Adds the probe array, the method that creates it, and a static
+    // initializer if the class has none
+    private void addProbes() {
+        int fieldAccess = isInterface
+                ? Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL
+                : Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_TRANSIENT;
+        cv.visitField(fieldAccess | Opcodes.ACC_SYNTHETIC, PROBE_FIELD, PROBE_DESC, null, null)
+                .visitEnd();
+
+        int initAccess = privateInit ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PUBLIC;
+        MethodVisitor mv = cv.visitMethod(initAccess | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                PROBE_INIT, PROBE_INIT_DESC, null, null);
+        mv.visitCode();
+        LoggingMethodAdapter.pushInt(mv, methodIds.size());
+        mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+        for (int i = 0; i < methodIds.size(); i++) {
+            mv.visitInsn(Opcodes.DUP);
+            LoggingMethodAdapter.pushInt(mv, i);
+            LoggingMethodAdapter.pushInt(mv, methodIds.get(i));
+            mv.visitInsn(Opcodes.IASTORE);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/matrixer/agent/InvocationLogger", "probes",
+                "([I)[Z", false);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if (!hasClinit) {
+            mv = cv.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            initProbes(mv);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    private void initProbes(MethodVisitor mv) {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, PROBE_INIT, PROBE_INIT_DESC, isInterface);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, PROBE_FIELD, PROBE_DESC);
+    }
+
+    /**
+     * @return the names of the methods that probes were added for
+     */
+    public List<String> methodNames() {
+        return methodNames;
     }
 
-    private String qualifiedMethodName(String name, String desc) {
-        return className + "." + name + desc;
+    private String qualifiedMethodName(String nameAndDesc) {
+        return className + "." + nameAndDesc;
     }
 }
@@ -15,26 +15,73 @@
  */
 package org.matrixer.agent.instrumentation;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 public class LoggingMethodAdapter extends TryFinallyMethodWrapper {
 
-    public LoggingMethodAdapter(int api, MethodVisitor mv, String methodName) {
+    static final String LOGGER = "org/matrixer/agent/InvocationLogger";
+
+    // Binds switchable probes to the call site of the logger method
+    static final Handle BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, LOGGER, "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+                    + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false);
+
+    // The id assigned to the method by the method registry
+    private final int methodId;
+
+    private boolean switchable = false;
+
+    public LoggingMethodAdapter(int api, MethodVisitor mv, String methodName, int methodId) {
         super(api, mv, methodName);
+        this.methodId = methodId;
+    }
+
+    /**
+     * Link the probes with invokedynamic so that they can be switched off.
+     * Requires a Java 7 class.
+     */
+    public void switchable() {
+        switchable = true;
     }
 
     @Override
     protected void onMethodEnter() {
-        mv.visitLdcInsn(methodName);
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/matrixer/agent/InvocationLogger", "pushMethod",
-                "(Ljava/lang/String;)V", false);
+        pushMethodId();
+        invokeLogger(mv, "pushMethod", switchable);
     }
 
     @Override
     protected void onMethodExit() {
-        mv.visitLdcInsn(methodName);
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/matrixer/agent/InvocationLogger", "popMethod",
-                "(Ljava/lang/String;)V", false);
+        pushMethodId();
+        invokeLogger(mv, "popMethod", switchable);
+    }
+
+    // Calls a logger method that takes the method id
+    static void invokeLogger(MethodVisitor mv, String method, boolean switchable) {
+        if (switchable) {
+            mv.visitInvokeDynamicInsn(method, "(I)V", BOOTSTRAP);
+        } else {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, LOGGER, method, "(I)V", false);
+        }
+    }
+
+    private void pushMethodId() {
+        pushInt(mv, methodId);
+    }
+
+    // Uses the smallest instruction that can load the value
+    static void pushInt(MethodVisitor mv, int value) {
+        if (value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
     }
 }
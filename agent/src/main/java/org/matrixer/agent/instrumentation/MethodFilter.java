@@ -0,0 +1,156 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.util.*;
+
+import org.matrixer.core.runtime.AgentOptions;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Decides which methods of a target class are left without probes.
+ *
+ * Bridge and synthetic methods are filtered by their access flags. Field
+ * accessors and methods with fewer instructions than the minimum size are
+ * filtered by their body, which requires the method to be buffered before
+ * it is instrumented.
+ */
+public class MethodFilter {
+
+    /**
+     * Instruments every method
+     */
+    public static final MethodFilter NONE = new MethodFilter(false, false, false, false, 0);
+
+    private final boolean skipBridges;
+    private final boolean skipSynthetic;
+    private final boolean skipAccessors;
+    private final boolean mapLambdas;
+    private final int minSize;
+
+    public MethodFilter(AgentOptions options) {
+        this(options.getFilters().contains(AgentOptions.FILTER_BRIDGE),
+                options.getFilters().contains(AgentOptions.FILTER_SYNTHETIC),
+                options.getFilters().contains(AgentOptions.FILTER_ACCESSORS),
+                options.getFilters().contains(AgentOptions.FILTER_LAMBDAS),
+                options.getMinSize());
+    }
+
+    /**
+     * @param skipBridges
+     *            skip bridge methods
+     * @param skipSynthetic
+     *            skip methods generated by the compiler, including bridges
+     * @param skipAccessors
+     *            skip methods that only get or set a field
+     * @param mapLambdas
+     *            record calls to lambda bodies as calls to the method the
+     *            lambda is declared in
+     * @param minSize
+     *            skip methods with fewer instructions than this
+     */
+    public MethodFilter(boolean skipBridges, boolean skipSynthetic, boolean skipAccessors,
+            boolean mapLambdas, int minSize) {
+        this.skipBridges = skipBridges;
+        this.skipSynthetic = skipSynthetic;
+        this.skipAccessors = skipAccessors;
+        this.mapLambdas = mapLambdas;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Describes the filter. Classes instrumented with filters that have the
+     * same description are identical.
+     */
+    @Override
+    public String toString() {
+        return "bridges=" + skipBridges + ",synthetic=" + skipSynthetic + ",accessors="
+                + skipAccessors + ",lambdas=" + mapLambdas + ",minSize=" + minSize;
+    }
+
+    public boolean skipByAccess(int access) {
+        if (skipSynthetic && (access & Opcodes.ACC_SYNTHETIC) != 0) {
+            return true;
+        }
+        return skipBridges && (access & Opcodes.ACC_BRIDGE) != 0;
+    }
+
+    /**
+     * Returns true if the body of a method must be inspected before it is
+     * instrumented
+     */
+    public boolean needsBody() {
+        return skipAccessors || minSize > 0;
+    }
+
+    public boolean mapLambdas() {
+        return mapLambdas;
+    }
+
+    /**
+     * Returns true if the body of the method is too small or simple to be
+     * instrumented
+     */
+    public boolean isTrivial(MethodNode method) {
+        List<Integer> opcodes = new ArrayList<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            // Labels, line numbers and frames have no opcode
+            if (insn.getOpcode() >= 0) {
+                opcodes.add(insn.getOpcode());
+            }
+        }
+        if (opcodes.size() < minSize) {
+            return true;
+        }
+        return skipAccessors && (isGetter(opcodes) || isSetter(opcodes));
+    }
+
+    // return this.field or return Class.field
+    private static boolean isGetter(List<Integer> opcodes) {
+        switch (opcodes.size()) {
+            case 2:
+                return opcodes.get(0) == Opcodes.GETSTATIC && isValueReturn(opcodes.get(1));
+            case 3:
+                return opcodes.get(0) == Opcodes.ALOAD && opcodes.get(1) == Opcodes.GETFIELD
+                        && isValueReturn(opcodes.get(2));
+            default:
+                return false;
+        }
+    }
+
+    // this.field = value or Class.field = value
+    private static boolean isSetter(List<Integer> opcodes) {
+        switch (opcodes.size()) {
+            case 3:
+                return isLoad(opcodes.get(0)) && opcodes.get(1) == Opcodes.PUTSTATIC
+                        && opcodes.get(2) == Opcodes.RETURN;
+            case 4:
+                return opcodes.get(0) == Opcodes.ALOAD && isLoad(opcodes.get(1))
+                        && opcodes.get(2) == Opcodes.PUTFIELD && opcodes.get(3) == Opcodes.RETURN;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isLoad(int opcode) {
+        return opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD;
+    }
+
+    private static boolean isValueReturn(int opcode) {
+        return opcode >= Opcodes.IRETURN && opcode <= Opcodes.ARETURN;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A set of glob patterns compiled into a trie of their literal prefixes.
+ *
+ * In a pattern '*' matches any number of characters and '?' matches one
+ * character. A name is matched by walking the trie along the name, and
+ * only the patterns whose literal prefix matches the name are tried.
+ */
+class PatternTrie {
+
+    private final Node root = new Node();
+
+    /**
+     * Adds a glob pattern
+     */
+    void add(String glob) {
+        int wildcard = firstWildcard(glob);
+        Node node = root;
+        for (int i = 0; i < wildcard; i++) {
+            node = node.child(glob.charAt(i), true);
+        }
+        String remainder = glob.substring(wildcard);
+        if (remainder.isEmpty()) {
+            node.exact = true;
+        } else if (remainder.chars().allMatch(c -> c == '*')) {
+            node.matchAll = true;
+        } else {
+            node.patterns.add(Pattern.compile(toRegex(remainder)));
+        }
+    }
+
+    /**
+     * Returns true if any pattern matches the whole name
+     */
+    boolean matches(String name) {
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.matchAll) {
+                return true;
+            }
+            for (var pattern : node.patterns) {
+                if (pattern.matcher(name).region(i, name.length()).matches()) {
+                    return true;
+                }
+            }
+            if (i == name.length()) {
+                return node.exact;
+            }
+            node = node.child(name.charAt(i), false);
+        }
+        return false;
+    }
+
+    private static int firstWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return glob.length();
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+
+        // A pattern without wildcards ends here
+        boolean exact = false;
+        // A pattern ending with '*' ends here
+        boolean matchAll = false;
+        // The remainders of patterns with wildcards that start here
+        final List<Pattern> patterns = new ArrayList<>(0);
+
+        Node child(char c, boolean create) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            children[children.length - 1] = new Node();
+            return children[children.length - 1];
+        }
+    }
+}
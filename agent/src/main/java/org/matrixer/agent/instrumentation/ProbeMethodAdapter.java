@@ -0,0 +1,47 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Sets the probe of a method in the probe array of its class when the
+ * method is entered. Nothing is added at the exits of the method.
+ */
+public class ProbeMethodAdapter extends MethodVisitor {
+
+    private final String owner;
+
+    // The index of the method in the probe array
+    private final int probe;
+
+    public ProbeMethodAdapter(int api, MethodVisitor mv, String owner, int probe) {
+        super(api, mv);
+        this.owner = owner;
+        this.probe = probe;
+    }
+
+    @Override
+    public void visitCode() {
+        super.visitCode();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, owner, LoggingClassAdapter.PROBE_FIELD,
+                LoggingClassAdapter.PROBE_DESC);
+        LoggingMethodAdapter.pushInt(mv, probe);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.BASTORE);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.objectweb.asm.*;
+
+/**
+ * Makes the executors and tasks of java.util.concurrent call the task
+ * hook, so that tasks run in the test case that submitted them.
+ *
+ * Tasks are captured when they are submitted or forked, and the context is
+ * restored when a worker of a thread pool executor runs them, or when a
+ * future task or fork join task runs. Runnables and callables submitted to
+ * a fork join pool are wrapped, which the pool hides in its own adapter.
+ * Only instructions without branches are injected, so the existing frames
+ * stay valid.
+ */
+public class TaskClassTransformer implements ClassFileTransformer {
+
+    /** The classes that must be retransformed */
+    public static final Class<?>[] CLASSES = {
+        ThreadPoolExecutor.class, ForkJoinPool.class, ForkJoinTask.class, FutureTask.class
+    };
+
+    private static final String HOOK = BootstrapHooks.TASK_HOOK;
+
+    private static final String RUNNABLE = "Ljava/lang/Runnable;";
+    private static final String CALLABLE = "Ljava/util/concurrent/Callable;";
+    private static final String TASK = "Ljava/util/concurrent/ForkJoinTask;";
+
+    private enum Hook {
+        // Replaces the first argument with the result of the hook
+        SUBMIT_FORK_JOIN("submitForkJoin", "(" + RUNNABLE + ")" + RUNNABLE),
+        SUBMIT_CALLABLE("submit", "(" + CALLABLE + ")" + CALLABLE),
+        // Passes the first argument to the hook
+        CAPTURE_ARGUMENT("fork", "(Ljava/lang/Object;)V"),
+        // Passes this to the hook
+        CAPTURE("fork", "(Ljava/lang/Object;)V"),
+        // Passes this to the hook on entry and before returning
+        RUN("run", "(Ljava/lang/Object;)V"),
+        // Runs the tasks of a worker through the hook
+        RUN_WORKER("runTask", "(" + RUNNABLE + ")V");
+
+        final String method;
+        final String descriptor;
+
+        Hook(String method, String descriptor) {
+            this.method = method;
+            this.descriptor = descriptor;
+        }
+    }
+
+    private static final Map<String, Hook> HOOKS = Map.ofEntries(
+            Map.entry("java/util/concurrent/ThreadPoolExecutor.execute(" + RUNNABLE + ")V",
+                    Hook.CAPTURE_ARGUMENT),
+            Map.entry("java/util/concurrent/ThreadPoolExecutor.runWorker("
+                    + "Ljava/util/concurrent/ThreadPoolExecutor$Worker;)V", Hook.RUN_WORKER),
+            Map.entry("java/util/concurrent/ForkJoinPool.execute(" + RUNNABLE + ")V",
+                    Hook.SUBMIT_FORK_JOIN),
+            Map.entry("java/util/concurrent/ForkJoinPool.submit(" + RUNNABLE + ")" + TASK,
+                    Hook.SUBMIT_FORK_JOIN),
+            Map.entry("java/util/concurrent/ForkJoinPool.submit(" + RUNNABLE
+                    + "Ljava/lang/Object;)" + TASK, Hook.SUBMIT_FORK_JOIN),
+            Map.entry("java/util/concurrent/ForkJoinPool.submit(" + CALLABLE + ")" + TASK,
+                    Hook.SUBMIT_CALLABLE),
+            Map.entry("java/util/concurrent/ForkJoinPool.execute(" + TASK + ")V",
+                    Hook.CAPTURE_ARGUMENT),
+            Map.entry("java/util/concurrent/ForkJoinPool.submit(" + TASK + ")" + TASK,
+                    Hook.CAPTURE_ARGUMENT),
+            Map.entry("java/util/concurrent/ForkJoinPool.invoke(" + TASK + ")Ljava/lang/Object;",
+                    Hook.CAPTURE_ARGUMENT),
+            Map.entry("java/util/concurrent/ForkJoinTask.fork()" + TASK, Hook.CAPTURE),
+            Map.entry("java/util/concurrent/ForkJoinTask.doExec()I", Hook.RUN),
+            Map.entry("java/util/concurrent/FutureTask.run()V", Hook.RUN));
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer)
+            throws IllegalClassFormatException {
+        if (loader != null || !isTarget(classBeingRedefined)) {
+            return null;
+        }
+        ClassReader cr = new ClassReader(classfileBuffer);
+        ClassWriter cw = new ClassWriter(cr, 0);
+        ClassVisitor cv = new ClassVisitor(Opcodes.ASM9, cw) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                    String signature, String[] exceptions) {
+                MethodVisitor mv =
+                        super.visitMethod(access, name, descriptor, signature, exceptions);
+                Hook hook = HOOKS.get(className + "." + name + descriptor);
+                return hook == null ? mv : new HookMethodAdapter(mv, hook);
+            }
+        };
+        cr.accept(cv, 0);
+        return cw.toByteArray();
+    }
+
+    private static boolean isTarget(Class<?> cls) {
+        for (Class<?> target : CLASSES) {
+            if (target == cls) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class HookMethodAdapter extends MethodVisitor {
+        private final Hook hook;
+
+        HookMethodAdapter(MethodVisitor mv, Hook hook) {
+            super(Opcodes.ASM9, mv);
+            this.hook = hook;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            switch (hook) {
+                case SUBMIT_FORK_JOIN:
+                case SUBMIT_CALLABLE:
+                    // task = TaskHook.submit(task)
+                    visitVarInsn(Opcodes.ALOAD, 1);
+                    callHook(hook.method, hook.descriptor);
+                    visitVarInsn(Opcodes.ASTORE, 1);
+                    break;
+                case CAPTURE_ARGUMENT:
+                    visitVarInsn(Opcodes.ALOAD, 1);
+                    callHook(hook.method, hook.descriptor);
+                    break;
+                case CAPTURE:
+                case RUN:
+                    visitVarInsn(Opcodes.ALOAD, 0);
+                    callHook(hook.method, hook.descriptor);
+                    break;
+                case RUN_WORKER:
+                    break;
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                boolean isInterface) {
+            if (hook == Hook.RUN_WORKER && opcode == Opcodes.INVOKEINTERFACE
+                    && owner.equals("java/lang/Runnable") && name.equals("run")) {
+                // task.run() becomes TaskHook.runTask(task)
+                callHook(hook.method, hook.descriptor);
+                return;
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (hook == Hook.RUN && opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                visitVarInsn(Opcodes.ALOAD, 0);
+                callHook("done", "(Ljava/lang/Object;)V");
+            }
+            super.visitInsn(opcode);
+        }
+
+        private void callHook(String method, String descriptor) {
+            visitMethodInsn(Opcodes.INVOKESTATIC, HOOK, method, descriptor, false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // Room for the argument of the hook on top of a return value
+            super.visitMaxs(maxStack + 1, maxLocals);
+        }
+    }
+}
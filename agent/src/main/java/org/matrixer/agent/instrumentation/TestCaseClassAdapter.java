@@ -17,25 +17,60 @@ package org.matrixer.agent.instrumentation;
 
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 class TestCaseClassAdapter extends ClassVisitor {
     String className;
 
+    // The pseudo test case of the lifecycle methods, or null
+    private final String fixtureName;
+
     public TestCaseClassAdapter(int version, ClassVisitor cv, String className) {
+        this(version, cv, className, false);
+    }
+
+    /**
+     * @param fixtures
+     *            whether calls made by lifecycle methods and the static
+     *            initializer are recorded in a fixture test case of the class
+     */
+    public TestCaseClassAdapter(int version, ClassVisitor cv, String className,
+            boolean fixtures) {
         super(version, cv);
         this.className = className.replace('/', '.');
+        this.fixtureName = fixtures ? testCaseName(FIXTURE) : null;
+    }
+
+    /** The method name of the fixture test cases */
+    static final String FIXTURE = "<fixture>";
+
+    private boolean frames = true;
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+            String[] interfaces) {
+        frames = (version & 0xFFFF) >= Opcodes.V1_6;
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String sign,
             String[] exceptions) {
 
-        // Does not work for (static/non-static) constructors
-        if (name.equals("<init>") || name.equals("<clinit>")) {
+        // Does not work for constructors
+        if (name.equals("<init>") || (name.equals("<clinit>") && fixtureName == null)) {
             return super.visitMethod(access, name, desc, sign, exceptions);
         }
         MethodVisitor mv = super.visitMethod(access, name, desc, sign, exceptions);
-        return new TestCaseMethodAdapter(api, mv, testCaseName(name));
+        TestCaseMethodAdapter adapter =
+                new TestCaseMethodAdapter(api, mv, testCaseName(name), fixtureName);
+        if (name.equals("<clinit>")) {
+            adapter.recordAsFixture();
+        }
+        if (!frames) {
+            adapter.skipFrames();
+        }
+        return adapter;
     }
 
     private String testCaseName(String name) {
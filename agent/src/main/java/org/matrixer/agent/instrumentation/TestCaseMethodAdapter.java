@@ -15,14 +15,49 @@
  */
 package org.matrixer.agent.instrumentation;
 
+import java.util.Set;
+
 import org.objectweb.asm.*;
 
 public class TestCaseMethodAdapter extends TryFinallyMethodWrapper {
 
+    // Lifecycle annotations of JUnit 4, JUnit 5 and TestNG
+    private static final Set<String> FIXTURE_ANNOTATIONS = Set.of(
+            "BeforeAll", "AfterAll", "BeforeEach", "AfterEach",
+            "Before", "After", "BeforeClass", "AfterClass",
+            "BeforeMethod", "AfterMethod");
+
     private boolean isTestCase = false;
+    private boolean isFixture = false;
+
+    // The pseudo test case that lifecycle methods record in, or null
+    private final String fixtureName;
 
     public TestCaseMethodAdapter(int api, MethodVisitor mv, String methodName) {
+        this(api, mv, methodName, null);
+    }
+
+    /**
+     * @param fixtureName
+     *            the test case that lifecycle methods record their calls
+     *            in, or null to leave them uninstrumented
+     */
+    public TestCaseMethodAdapter(int api, MethodVisitor mv, String methodName,
+            String fixtureName) {
         super(api, mv, methodName);
+        this.fixtureName = fixtureName;
+    }
+
+    /**
+     * Records the calls of the method in the fixture even though it is not
+     * annotated, used for static initializers
+     */
+    public void recordAsFixture() {
+        isFixture = fixtureName != null;
+    }
+
+    private boolean isInstrumented() {
+        return isTestCase || isFixture;
     }
 
     /*
@@ -33,13 +68,19 @@ public class TestCaseMethodAdapter extends TryFinallyMethodWrapper {
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         if (desc.endsWith("/Test;")) {
             isTestCase = true;
+        } else if (fixtureName != null && FIXTURE_ANNOTATIONS.contains(simpleName(desc))) {
+            isFixture = true;
         }
         return super.visitAnnotation(desc, visible);
     }
 
+    private static String simpleName(String desc) {
+        return desc.substring(desc.lastIndexOf('/') + 1, desc.length() - 1);
+    }
+
     @Override
     public void visitCode() {
-        if (isTestCase) {
+        if (isInstrumented()) {
             super.visitCode();
         } else {
             // Short out instrumentation
@@ -51,12 +92,14 @@ public class TestCaseMethodAdapter extends TryFinallyMethodWrapper {
     protected void onMethodEnter() {
         if (isTestCase) {
             logBeginTestCase();
-        } 
+        } else if (isFixture) {
+            callLogger("beginFixture", fixtureName);
+        }
     }
 
     @Override
     public void visitInsn(int opcode) {
-        if (isTestCase) {
+        if (isInstrumented()) {
             super.visitInsn(opcode);
         } else {
             // Short out instrumentation
@@ -66,7 +109,7 @@ public class TestCaseMethodAdapter extends TryFinallyMethodWrapper {
 
     @Override
     public void visitMaxs(int maxStack, int maxLocals) {
-        if (isTestCase) {
+        if (isInstrumented()) {
             super.visitMaxs(maxStack, maxLocals);
         } else {
             // Short out instrumentation
@@ -84,9 +127,17 @@ public class TestCaseMethodAdapter extends TryFinallyMethodWrapper {
     protected void onMethodExit() {
         if (isTestCase) {
             logEndTestCase();
+        } else if (isFixture) {
+            callLogger("endFixture", fixtureName);
         }
     }
 
+    private void callLogger(String method, String name) {
+        mv.visitLdcInsn(name);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/matrixer/agent/InvocationLogger", method,
+                "(Ljava/lang/String;)V", false);
+    }
+
     private void logEndTestCase() {
         mv.visitLdcInsn(methodName);
         mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/matrixer/agent/InvocationLogger", "endTestCase",
@@ -18,17 +18,18 @@ package org.matrixer.agent.instrumentation;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
-import java.util.function.Consumer;
 
 import org.objectweb.asm.*;
 
+/**
+ * Makes every Thread constructor report the new thread to the callback
+ * stored in the bootstrap visible hook class.
+ */
 public class ThreadClassTransformer implements ClassFileTransformer {
 
-    private final static String propKey = "__$__Thread<init>__$__";
-
-    public ThreadClassTransformer(Consumer<Thread> onThreadCreate) {
-        System.getProperties().put(propKey, onThreadCreate);
-    }
+    private static final String HOOK_CLASS = BootstrapHooks.THREAD_HOOK;
+    private static final String HOOK_FIELD = "onThreadCreate";
+    private static final String CONSUMER = "java/util/function/Consumer";
 
     @Override
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
@@ -49,22 +50,11 @@ public class ThreadClassTransformer implements ClassFileTransformer {
                             @Override
                             public void visitInsn(int opcode) {
                                 if (opcode == Opcodes.RETURN) {
-                                    // Properties p = System.getProperties();
-                                    visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System",
-                                            "getProperties", "()Ljava/util/Properties;", false);
-
-                                    // Object obj = p.get(...)
-                                    visitLdcInsn(propKey);
-                                    visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/util/Properties",
-                                            "get", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
-
-                                    // Consumer consumer = (Consumer) obj;
-                                    visitTypeInsn(Opcodes.CHECKCAST, "java/util/function/Consumer");
-
-                                    // consumer.accept(this)
+                                    // ThreadHook.onThreadCreate.accept(this)
+                                    visitFieldInsn(Opcodes.GETSTATIC, HOOK_CLASS, HOOK_FIELD,
+                                            "L" + CONSUMER + ";");
                                     visitVarInsn(Opcodes.ALOAD, 0);  // Loads "this" to stack
-                                    visitMethodInsn(Opcodes.INVOKEINTERFACE,
-                                            "java/util/function/Consumer", "accept",
+                                    visitMethodInsn(Opcodes.INVOKEINTERFACE, CONSUMER, "accept",
                                             "(Ljava/lang/Object;)V", true);
                                 }
                                 super.visitInsn(opcode);
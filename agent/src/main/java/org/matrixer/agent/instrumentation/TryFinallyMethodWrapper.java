@@ -38,11 +38,21 @@ public abstract class TryFinallyMethodWrapper extends MethodVisitor {
     private final Label originalContentBegin = new Label();
     private final Label originalContentEnd = new Label();
 
+    // Classes older than Java 6 have no frames
+    private boolean frames = true;
+
     public TryFinallyMethodWrapper(int api, MethodVisitor methodVisitor, String methodName) {
         super(api, methodVisitor);
         this.methodName = methodName;
     }
 
+    /**
+     * Do not add a frame for the exception handler
+     */
+    public void skipFrames() {
+        frames = false;
+    }
+
     /*
      * Beginning of method body
      */
@@ -82,9 +92,12 @@ public abstract class TryFinallyMethodWrapper extends MethodVisitor {
         // Declares the instructions that should be covered by the exception
         // handler
         visitTryCatchBlock(originalContentBegin, originalContentEnd, originalContentEnd, null);
-        // Restore previous frame
-        // This code will only be called when exceptions are caught
-        visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {"java/lang/Throwable"});
+        // This code will only be called when exceptions are caught. The
+        // handler uses no locals, so an empty frame is valid wherever the
+        // exception is thrown and the original frames can be kept.
+        if (frames) {
+            visitFrame(Opcodes.F_FULL, 0, new Object[0], 1, new Object[] {"java/lang/Throwable"});
+        }
         onMethodExit();
         // Rethrow exception
         super.visitInsn(Opcodes.ATHROW);
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+import java.util.Arrays;
+
+/**
+ * Maps each method id and call stack depth to the number of calls.
+ *
+ * The entries are kept in the order they were first recorded, and are
+ * indexed by an open addressing table so that recording a call does not
+ * allocate once the method has been seen at that depth. Counting the calls
+ * per depth keeps the depth statistics of the analyzer the same as if
+ * every call had been written.
+ *
+ * A map is not synchronized. A map must only be used by one thread, or
+ * be locked by every thread that uses it. The map of a thread stack is
+ * only used by its own thread, which merges it into the locked map of the
+ * test case.
+ */
+public class CoverageMap {
+
+    // Index into the entries + 1, 0 marks an empty slot
+    private int[] index;
+    private int mask;
+
+    private int[] methodIds;
+    private int[] depths;
+    private long[] counts;
+    private int size = 0;
+
+    public CoverageMap() {
+        this(16);
+    }
+
+    /**
+     * @param capacity
+     *            the number of entries that can be stored before growing
+     */
+    public CoverageMap(int capacity) {
+        capacity = Math.max(4, capacity);
+        methodIds = new int[capacity];
+        depths = new int[capacity];
+        counts = new long[capacity];
+        index = new int[Integer.highestOneBit(capacity - 1) << 2];
+        mask = index.length - 1;
+    }
+
+    /**
+     * Records a call to a method
+     *
+     * @param methodId
+     *            the id of the method
+     * @param depth
+     *            the call stack depth of the call
+     */
+    public void record(int methodId, int depth) {
+        record(methodId, depth, 1);
+    }
+
+    private void record(int methodId, int depth, long count) {
+        int slot = slot(methodId, depth);
+        int entry = index[slot] - 1;
+        if (entry < 0) {
+            add(slot, methodId, depth, count);
+        } else {
+            counts[entry] += count;
+        }
+    }
+
+    /**
+     * Adds every entry in another map to this map
+     */
+    public void addAll(CoverageMap other) {
+        for (int i = 0; i < other.size; i++) {
+            record(other.methodIds[i], other.depths[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * Removes every entry, keeping the capacity
+     */
+    public void clear() {
+        Arrays.fill(index, 0);
+        size = 0;
+    }
+
+    // Finds the slot of the entry, or the empty slot where it should go
+    private int slot(int methodId, int depth) {
+        int slot = mix(methodId, depth) & mask;
+        int entry;
+        while ((entry = index[slot] - 1) >= 0
+                && (methodIds[entry] != methodId || depths[entry] != depth)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int methodId, int depth) {
+        int h = (methodId * 31 + depth) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void add(int slot, int methodId, int depth, long count) {
+        int entry = size;
+        if (entry == methodIds.length) {
+            grow();
+            slot = slot(methodId, depth);
+        }
+        methodIds[entry] = methodId;
+        depths[entry] = depth;
+        counts[entry] = count;
+        index[slot] = entry + 1;
+        size = entry + 1;
+    }
+
+    private void grow() {
+        int capacity = methodIds.length * 2;
+        methodIds = Arrays.copyOf(methodIds, capacity);
+        depths = Arrays.copyOf(depths, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        index = new int[index.length * 2];
+        mask = index.length - 1;
+        for (int i = 0; i < size; i++) {
+            index[slot(methodIds[i], depths[i])] = i + 1;
+        }
+    }
+
+    /**
+     * @return the number of entries in this map
+     */
+    public int size() {
+        return size;
+    }
+
+    public int methodId(int entry) {
+        return methodIds[entry];
+    }
+
+    public int depth(int entry) {
+        return depths[entry];
+    }
+
+    public long count(int entry) {
+        return counts[entry];
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns each instrumented method a dense integer id.
+ *
+ * Ids are handed out by the transformer when a class is instrumented and
+ * are embedded as constants in the probes. The method names only need to
+ * be resolved when the recorded calls are written.
+ */
+public class MethodRegistry {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[1024];
+    private int size = 0;
+
+    /**
+     * Registers a method. Registering the same name twice, for instance
+     * when a class is loaded by several class loaders, returns the same
+     * id.
+     *
+     * @param methodName
+     *            the fully qualified name of the method
+     * @return the id of the method
+     */
+    public synchronized int register(String methodName) {
+        Integer id = ids.get(methodName);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = methodName;
+        ids.put(methodName, size);
+        return size++;
+    }
+
+    /**
+     * Resolves the name of a registered method
+     *
+     * @param id
+     *            the id of the method
+     * @return the name of the method
+     * @throws IllegalArgumentException
+     *             if no method is registered with the id
+     */
+    public synchronized String name(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("No method registered with id " + id);
+        }
+        return names[id];
+    }
+
+    /**
+     * @return the number of registered methods
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
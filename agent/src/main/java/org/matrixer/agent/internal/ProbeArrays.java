@@ -0,0 +1,84 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the probe arrays of the classes instrumented in probes mode.
+ *
+ * An instrumented method sets the flag at its probe index each time it is
+ * called. The flags are cleared when a test case begins and collected when
+ * it ends, so the arrays are shared by every thread and every test case
+ * that runs at the same time.
+ */
+public class ProbeArrays {
+
+    // The method ids of each class, by probe index
+    private final List<int[]> methodIds = new ArrayList<>();
+    private final List<boolean[]> probes = new ArrayList<>();
+
+    /**
+     * Creates the probe array of a class
+     *
+     * @param ids
+     *            the method ids of the class, by probe index
+     * @return the probe array, with one flag per method id
+     */
+    public synchronized boolean[] register(int[] ids) {
+        boolean[] array = new boolean[ids.length];
+        if (ids.length > 0) {
+            methodIds.add(ids);
+            probes.add(array);
+        }
+        return array;
+    }
+
+    /**
+     * Clears every flag
+     */
+    public synchronized void reset() {
+        for (boolean[] array : probes) {
+            Arrays.fill(array, false);
+        }
+    }
+
+    /**
+     * Adds the methods that were called since the last reset to the map,
+     * and clears their flags
+     */
+    public synchronized void harvest(CoverageMap calls, int depth) {
+        for (int i = 0; i < probes.size(); i++) {
+            boolean[] array = probes.get(i);
+            int[] ids = methodIds.get(i);
+            for (int j = 0; j < array.length; j++) {
+                if (array[j]) {
+                    array[j] = false;
+                    calls.record(ids[j], depth);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of registered arrays
+     */
+    public synchronized int size() {
+        return probes.size();
+    }
+}
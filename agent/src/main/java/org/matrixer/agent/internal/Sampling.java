@@ -0,0 +1,62 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+/**
+ * Decides which invocations of a method in a test case are recorded. The
+ * first invocation is always sampled, so every called method is recorded.
+ */
+public final class Sampling {
+
+    /**
+     * Samples every invocation
+     */
+    public static final Sampling ALL = new Sampling(0, 1);
+
+    private final long limit;
+    private final int rate;
+
+    /**
+     * @param limit
+     *            the number of invocations of each method that may be
+     *            sampled, or 0 for no limit
+     * @param rate
+     *            sample every rate:th invocation
+     */
+    public Sampling(long limit, int rate) {
+        if (limit < 0 || rate < 1) {
+            throw new IllegalArgumentException("Bad sampling limit " + limit + " or rate " + rate);
+        }
+        this.limit = limit == 0 ? Long.MAX_VALUE : limit;
+        this.rate = rate;
+    }
+
+    /**
+     * @param invocation
+     *            the number of earlier invocations of the method
+     * @return true if the invocation should be sampled
+     */
+    public boolean sample(long invocation) {
+        if (invocation >= limit) {
+            return false;
+        }
+        return rate == 1 || invocation % rate == 0;
+    }
+
+    public boolean samplesAll() {
+        return limit == Long.MAX_VALUE && rate == 1;
+    }
+}
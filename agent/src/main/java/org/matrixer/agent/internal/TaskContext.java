@@ -15,12 +15,28 @@
  */
 package org.matrixer.agent.internal;
 
-public class Call {
-    public final String calledMethod;
-    public final int stackDepth;
+/**
+ * The test case and stack depth of a thread at the time it submitted a
+ * task or created a thread
+ */
+public class TaskContext {
+
+    /** Inherited by threads created outside of test cases */
+    public static final TaskContext NONE = new TaskContext(null, 0);
+
+    private final TestCase test;
+    private final int depth;
+
+    public TaskContext(TestCase test, int depth) {
+        this.test = test;
+        this.depth = depth;
+    }
+
+    public TestCase test() {
+        return test;
+    }
 
-    public Call(String calledMethod, int stackDepth) {
-        this.calledMethod = calledMethod;
-        this.stackDepth = stackDepth;
+    public int depth() {
+        return depth;
     }
 }
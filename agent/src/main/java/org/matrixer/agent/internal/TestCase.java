@@ -17,35 +17,147 @@ package org.matrixer.agent.internal;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class TestCase {
     final String name;
 
-    final Collection<Call> calls = new ConcurrentLinkedQueue<>();
     final Collection<ThreadStack> threads = new ConcurrentLinkedQueue<>();
 
+    final Sampling sampling;
+
+    // The number of invocations of each method id by all threads of the
+    // test case, null if every call is recorded
+    private volatile AtomicIntegerArray invocations;
+
+    // Calls merged by every thread except the one that began the test
+    // case. Shared by those threads, so it is locked.
+    private final CoverageMap detached;
+
+    private volatile boolean ended = false;
+
     public TestCase(String testName) {
+        this(testName, Sampling.ALL);
+    }
+
+    public TestCase(String testName, Sampling sampling) {
         this.name = testName;
+        this.sampling = sampling;
+        this.invocations = sampling.samplesAll() ? null : new AtomicIntegerArray(16);
+        this.detached = new CoverageMap();
     }
 
-    public String name() {
-        return this.name;
+    /**
+     * @return which calls the threads of this test case sample
+     */
+    public Sampling sampling() {
+        return sampling;
+    }
+
+    /**
+     * Counts an invocation of a method by any thread of this test case, and
+     * decides if it is recorded
+     *
+     * @return true if the invocation should be recorded
+     */
+    public boolean sample(int methodId) {
+        AtomicIntegerArray counts = invocations;
+        if (counts == null) {
+            return true;
+        }
+        if (methodId >= counts.length()) {
+            counts = grow(methodId);
+        }
+        int invocation = counts.get(methodId);
+        if (invocation < Integer.MAX_VALUE) {
+            invocation = counts.getAndIncrement(methodId);
+        }
+        return sampling.sample(invocation);
+    }
+
+    // An invocation counted in the old array while it is copied is lost,
+    // which at most samples one more invocation
+    private synchronized AtomicIntegerArray grow(int methodId) {
+        AtomicIntegerArray counts = invocations;
+        if (methodId < counts.length()) {
+            return counts;
+        }
+        AtomicIntegerArray grown =
+                new AtomicIntegerArray(Math.max(methodId + 1, counts.length() * 2));
+        for (int i = 0; i < counts.length(); i++) {
+            grown.set(i, counts.get(i));
+        }
+        invocations = grown;
+        return grown;
     }
 
-    public void addCall(String methodName, int depth) {
-        calls.add(new Call(methodName, depth));
+    public String name() {
+        return this.name;
     }
 
     public void mapThread(ThreadStack thread) {
         threads.add(thread);
     }
 
+    /**
+     * Adds the calls of a thread other than the one that began this test
+     * case
+     */
+    public void merge(CoverageMap calls) {
+        synchronized (detached) {
+            detached.addAll(calls);
+        }
+    }
+
+    /**
+     * Records a call made by a thread other than the one that began this
+     * test case
+     */
+    public void record(int methodId, int depth) {
+        synchronized (detached) {
+            detached.record(methodId, depth);
+        }
+    }
+
+    /**
+     * Marks that the test case has ended and its calls have been written
+     *
+     * @return false if the test case had already ended
+     */
+    public synchronized boolean end() {
+        if (ended) {
+            return false;
+        }
+        ended = true;
+        return true;
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+
     public Collection<ThreadStack> threads() {
         return Collections.unmodifiableCollection(threads);
     }
 
-    public Collection<Call> calls() {
-        return Collections.unmodifiableCollection(calls);
+    /**
+     * Merges the calls of the thread that began this test case with the
+     * calls the other threads have merged. Must be called by the thread
+     * that began the test case, since its calls are not locked.
+     *
+     * @return the recorded calls
+     */
+    public CoverageMap coverage() {
+        CoverageMap merged = new CoverageMap();
+        for (var thread : threads) {
+            if (!thread.mergesCalls()) {
+                merged.addAll(thread.coverage());
+            }
+        }
+        synchronized (detached) {
+            merged.addAll(detached);
+        }
+        return merged;
     }
 }
 
@@ -15,10 +15,16 @@
  */
 package org.matrixer.agent.internal;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 /**
  * Keeps track of the stack depth for a thread
+ *
+ * A stack is only pushed and popped by the thread it belongs to, so the
+ * depth and the calls are not synchronized. Only the stack of the thread
+ * that begins the test case is read when the test case ends, by that
+ * thread. Every other stack merges its calls into the test case, under
+ * its lock, each time it returns to its base depth or its task ends. A
+ * thread that has not returned to its base depth when the test case ends
+ * does not add the calls it has recorded since.
  */
 public class ThreadStack {
     private final long threadId;
@@ -27,42 +33,194 @@ public class ThreadStack {
     // The first thread started by a test case begins with depth 0
     // Each child thread spawned by a parent thread mapped to a test case
     // will inherit the depth from its parent.
-    private final AtomicInteger depth;
+    private int depth;
 
     // The test case that the thread is running in
     private final TestCase test;
 
+    // The calls recorded by this thread
+    private final CoverageMap coverage;
+
+    // Set when the test case has ended and the stack must not be used
+    private volatile boolean released = false;
+
+    // Detached stacks are not mapped to their test case, so that they are
+    // not kept after their thread ends
+    private final boolean detached;
+
+    // Whether the calls are merged into the test case at the base depth,
+    // false only for the stack of the thread that begins the test case
+    private final boolean merges;
+    private int baseDepth;
+
+    // The task this stack is running, and the stack that was bound to the
+    // thread before the task started
+    private Object task;
+    private ThreadStack previous;
+
     public ThreadStack(long threadId, TestCase tc) {
         this.threadId = threadId;
-        this.depth = new AtomicInteger(0);
+        this.depth = 0;
         this.test = tc;
+        this.coverage = new CoverageMap();
+        this.detached = false;
+        this.merges = false;
+        this.baseDepth = 0;
         tc.mapThread(this);
     }
 
+    /**
+     * Creates the stack of a child thread. Must be called by the parent
+     * thread.
+     */
     public ThreadStack(long threadId, ThreadStack parent) {
         this.threadId = threadId;
-        this.depth = new AtomicInteger(parent.depth());
+        this.depth = parent.depth();
         this.test = parent.test;
+        this.coverage = new CoverageMap();
+        this.detached = false;
+        this.merges = true;
+        this.baseDepth = depth;
         parent.test.mapThread(this);
     }
 
+    /**
+     * Creates the stack of a thread that inherited a context when it was
+     * created, or that runs tasks of the test case. A detached stack is not
+     * mapped to the test case, so that short lived threads such as virtual
+     * threads leave nothing behind.
+     */
+    public ThreadStack(long threadId, TaskContext ctx, boolean detached) {
+        this.threadId = threadId;
+        this.depth = ctx.depth();
+        this.baseDepth = ctx.depth();
+        this.test = ctx.test();
+        this.coverage = new CoverageMap();
+        this.detached = detached;
+        this.merges = true;
+        if (!detached) {
+            test.mapThread(this);
+        }
+    }
+
     public TestCase mappedTestCase() {
         return test;
     }
 
     public int push() {
-        return depth.incrementAndGet();
+        return ++depth;
     }
 
     public int pop() {
-        return depth.decrementAndGet();
+        if (--depth == baseDepth && merges) {
+            mergeCalls();
+        }
+        return depth;
+    }
+
+    private void mergeCalls() {
+        if (coverage.size() > 0) {
+            test.merge(coverage);
+            coverage.clear();
+        }
     }
 
     public int depth() {
-        return depth.get();
+        return depth;
+    }
+
+    /**
+     * Counts an invocation of a method in the test case, and decides if it
+     * is recorded
+     *
+     * @return true if the invocation should be recorded
+     */
+    public boolean sample(int methodId) {
+        return test.sample(methodId);
+    }
+
+    /**
+     * Records a call made by this thread
+     */
+    public void record(int methodId, int depth) {
+        coverage.record(methodId, depth);
+    }
+
+    /**
+     * Records a call that is not pushed on the stack. A stack that merges
+     * its calls would never return to its base depth, so it records the
+     * call in the test case directly.
+     */
+    public void recordEntry(int methodId, int depth) {
+        if (merges) {
+            test.record(methodId, depth);
+        } else {
+            coverage.record(methodId, depth);
+        }
+    }
+
+    /**
+     * @return the calls this thread has recorded, or not yet merged into
+     *         the test case
+     */
+    public CoverageMap coverage() {
+        return coverage;
+    }
+
+    /**
+     * @return true if the calls are merged into the test case instead of
+     *         read when it ends
+     */
+    public boolean mergesCalls() {
+        return merges;
+    }
+
+    /**
+     * Starts running a task submitted at the given depth
+     */
+    public void beginTask(Object task, int depth, ThreadStack previous) {
+        this.task = task;
+        this.depth = depth;
+        this.baseDepth = depth;
+        this.previous = previous;
+    }
+
+    /**
+     * Ends the running task and merges its calls
+     *
+     * @return the stack to bind to the thread again, or null
+     */
+    public ThreadStack endTask() {
+        if (merges) {
+            mergeCalls();
+        }
+        ThreadStack stack = previous;
+        task = null;
+        previous = null;
+        return stack;
+    }
+
+    public boolean runsTask() {
+        return task != null;
+    }
+
+    public boolean runsTask(Object task) {
+        return this.task == task;
     }
 
     public long id() {
         return threadId;
     }
+
+    public void release() {
+        released = true;
+    }
+
+    public boolean isReleased() {
+        return released || (detached && test.isEnded());
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
 }
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.matrixer.core.runtime.MethodCall;
+import org.matrixer.core.runtime.NoopLogger;
+
+class AsyncWriterTest {
+
+    @Test
+    void writesAllBatchesInOrderOnClose() throws IOException {
+        RecordingWriter out = new RecordingWriter();
+        AsyncWriter writer = new AsyncWriter(out, 4, 60_000, 1000, new NoopLogger());
+
+        List<MethodCall> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            List<MethodCall> batch = List.of(
+                    new MethodCall(1, "Method" + i, "Test" + i),
+                    new MethodCall(2, "Other" + i, "Test" + i));
+            expected.addAll(batch);
+            writer.write(batch);
+        }
+        writer.close();
+
+        assertEquals(expected, out.calls());
+        assertTrue(out.closed, "Underlying writer not closed");
+    }
+
+    @Test
+    void groupsBatchesUpToFlushSize() throws IOException {
+        RecordingWriter out = new RecordingWriter();
+        AsyncWriter writer = new AsyncWriter(out, 100, 60_000, 10, new NoopLogger());
+
+        for (int i = 0; i < 20; i++) {
+            writer.write(List.of(new MethodCall(1, "Method" + i, "Test")));
+        }
+        writer.close();
+
+        assertEquals(20, out.calls().size());
+        assertTrue(out.batches.size() < 20, "Batches were not grouped");
+    }
+
+    @Test
+    void writesBatchesAfterFlushInterval() throws Exception {
+        RecordingWriter out = new RecordingWriter();
+        AsyncWriter writer = new AsyncWriter(out, 10, new NoopLogger());
+        MethodCall call = new MethodCall(1, "Method", "Test");
+
+        writer.write(List.of(call));
+        List<MethodCall> written = out.batches.poll(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of(call), written);
+        writer.close();
+    }
+
+    @Test
+    void rejectsBatchesAfterClose() throws IOException {
+        RecordingWriter out = new RecordingWriter();
+        AsyncWriter writer = new AsyncWriter(out, 10, new NoopLogger());
+        writer.close();
+
+        MethodCall call = new MethodCall(1, "Method", "Test");
+        assertThrows(IOException.class, () -> writer.write(List.of(call)));
+        assertEquals(List.of(), out.calls());
+    }
+
+    @Test
+    void writesEveryAcceptedBatchWhenClosedWhileWriting() throws Exception {
+        RecordingWriter out = new RecordingWriter();
+        AsyncWriter writer = new AsyncWriter(out, 2, 60_000, 1000, new NoopLogger());
+        int threads = 8;
+        int batches = 200;
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(threads);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String test = "Test" + t;
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; i < batches; i++) {
+                    try {
+                        writer.write(List.of(new MethodCall(1, "Method" + i, test)));
+                        accepted.incrementAndGet();
+                    } catch (IOException e) {
+                        // Closed
+                        return;
+                    }
+                }
+            });
+            thread.start();
+            writers.add(thread);
+        }
+        started.await();
+        writer.close();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+
+        assertTrue(out.closed, "Underlying writer not closed");
+        assertEquals(accepted.get(), out.calls().size());
+    }
+
+    static class RecordingWriter implements ResultsWriter {
+        LinkedBlockingQueue<List<MethodCall>> batches = new LinkedBlockingQueue<>();
+        volatile boolean closed = false;
+
+        @Override
+        public void write(List<MethodCall> calls) {
+            batches.add(new ArrayList<>(calls));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        List<MethodCall> calls() {
+            List<MethodCall> calls = new ArrayList<>();
+            batches.forEach(calls::addAll);
+            return calls;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.MethodCall;
+import org.matrixer.core.runtime.NoopLogger;
+
+class ContextPropagatorTest {
+
+    static final String TEST_CASE = "TestCase";
+
+    ByteArrayOutputStream out;
+    MethodRegistry registry;
+    StackRecorderImpl recorder;
+    ContextPropagator propagator;
+    ExecutorService executor;
+
+    @BeforeEach
+    void setup() throws Exception {
+        out = new ByteArrayOutputStream();
+        SynchronizedWriter w = new SynchronizedWriter(new OutputStreamWriter(out));
+        registry = new MethodRegistry();
+        recorder = new StackRecorderImpl(w, registry, new NoopLogger());
+        propagator = new ContextPropagator(recorder, new NoopLogger());
+        executor = Executors.newSingleThreadExecutor();
+        // Start the worker before any test case
+        executor.submit(() -> {}).get();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void doesNotWrapTasksOutsideTestCases() {
+        Runnable runnable = () -> {};
+        Callable<Integer> callable = () -> 1;
+        assertSame(runnable, propagator.wrap(runnable));
+        assertSame(callable, propagator.wrap(callable));
+    }
+
+    @Test
+    void runsWrappedRunnableInSubmittingTestCase() throws Exception {
+        Runnable task = () -> call("task");
+        beginTestCase();
+        call("caller", () -> executor.submit(propagator.wrap(task)).get());
+        endTestCase();
+
+        List<String> lines = finish();
+        assertTrue(lines.contains(line(1, "caller")));
+        assertTrue(lines.contains(line(2, "task")));
+    }
+
+    @Test
+    void runsWrappedCallableInSubmittingTestCase() throws Exception {
+        Callable<Object> task = () -> call("task");
+        beginTestCase();
+        call("caller", () -> executor.submit(propagator.wrap(task)).get());
+        endTestCase();
+
+        assertTrue(finish().contains(line(2, "task")));
+    }
+
+    @Test
+    void restoresCapturedTaskWhenItRuns() throws Exception {
+        FutureTask<?> task = new FutureTask<>(() -> call("task"), null);
+        beginTestCase();
+        call("caller", () -> {
+            propagator.capture(task);
+            executor.submit(() -> {
+                propagator.beforeRun(task);
+                task.run();
+                propagator.afterRun(task);
+                // Calls after the task are not attributed to the test case
+                call("other");
+            }).get();
+        });
+        endTestCase();
+
+        assertEquals(List.of(line(1, "caller"), line(2, "task")), finish());
+    }
+
+    @Test
+    void comparesCapturedTasksByIdentity() throws Exception {
+        Runnable task = new EqualTask(() -> call("task"));
+        Runnable other = new EqualTask(() -> call("other"));
+        beginTestCase();
+        propagator.capture(task);
+        executor.submit(() -> {
+            propagator.beforeRun(other);
+            other.run();
+            propagator.afterRun(other);
+        }).get();
+        endTestCase();
+
+        assertEquals(List.of(), finish());
+    }
+
+    static class EqualTask implements Runnable {
+        private final Runnable body;
+
+        EqualTask(Runnable body) {
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof EqualTask;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    @Test
+    void discardsCapturedTasksThatNeverRan() {
+        beginTestCase();
+        propagator.capture(new Object());
+        endTestCase();
+
+        assertTrue(recorder.pendingTasks.isEmpty());
+    }
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    Object call(String method) {
+        recorder.pushMethod(registry.register(method));
+        recorder.popMethod(registry.register(method));
+        return null;
+    }
+
+    void call(String method, Body body) throws Exception {
+        recorder.pushMethod(registry.register(method));
+        try {
+            body.run();
+        } finally {
+            recorder.popMethod(registry.register(method));
+        }
+    }
+
+    void beginTestCase() {
+        recorder.beginTestCase(TEST_CASE, Thread.currentThread().getId());
+    }
+
+    void endTestCase() {
+        recorder.endTestCase(TEST_CASE, Thread.currentThread().getId());
+    }
+
+    String line(int depth, String method) {
+        return new MethodCall(depth, method, TEST_CASE).asLine();
+    }
+
+    List<String> finish() {
+        String output = out.toString();
+        return output.isEmpty() ? List.of() : List.of(output.split("\n"));
+    }
+}
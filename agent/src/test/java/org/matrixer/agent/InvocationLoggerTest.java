@@ -19,17 +19,21 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.SynchronousQueue;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.matrixer.agent.internal.MethodRegistry;
 import org.matrixer.core.runtime.PrintLogger;
 import org.matrixer.core.runtime.MethodCall;
 
 class InvocationLoggerTest {
 
     ByteArrayOutputStream out;
+    MethodRegistry registry;
     StackRecorder recorder;
     Random random = new Random();
 
@@ -37,7 +41,8 @@ class InvocationLoggerTest {
     void setup() {
         out = new ByteArrayOutputStream();
         SynchronizedWriter w = new SynchronizedWriter(new OutputStreamWriter(out));
-        recorder = new StackRecorderImpl(w, new PrintLogger(System.out));
+        registry = new MethodRegistry();
+        recorder = new StackRecorderImpl(w, registry, new PrintLogger(System.out));
     }
 
     @Test
@@ -47,8 +52,8 @@ class InvocationLoggerTest {
         long thread = Thread.currentThread().getId();
 
         recorder.beginTestCase(testCase, thread);
-        recorder.pushMethod(method, thread);
-        recorder.popMethod(method, thread);
+        recorder.pushMethod(id(method));
+        recorder.popMethod(id(method));
         recorder.endTestCase(testCase, thread);
 
         String[] output = finish();
@@ -65,7 +70,7 @@ class InvocationLoggerTest {
 
         long thread = Thread.currentThread().getId();
         recorder.beginTestCase(testCase, thread);
-        callNested(nestedMethods, thread);
+        callNested(nestedMethods);
         recorder.endTestCase(testCase, thread);
 
         String[] output = finish();
@@ -81,7 +86,7 @@ class InvocationLoggerTest {
 
         long thread = Thread.currentThread().getId();
         recorder.beginTestCase(testCase, thread);
-        callNested(nestedMethods, thread);
+        callNested(nestedMethods);
         recorder.endTestCase(testCase, thread);
 
         String[] output = finish();
@@ -96,7 +101,7 @@ class InvocationLoggerTest {
 
         long thread = Thread.currentThread().getId();
         recorder.beginTestCase(testCase, thread);
-        callConsequtive(methods, thread);
+        callConsequtive(methods);
         recorder.endTestCase(testCase, thread);
         String[] output = finish();
 
@@ -104,6 +109,195 @@ class InvocationLoggerTest {
         assertEqualDepth(1, output);
     }
 
+    @Test
+    void aggregatesRepeatedCalls() {
+        String testCase = "TestCase" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        List<String> outer = createTargetMethods(2);
+
+        long thread = Thread.currentThread().getId();
+        recorder.beginTestCase(testCase, thread);
+        for (int i = 0; i < 1000; i++) {
+            callConsequtive(List.of(method));
+        }
+        pushMethods(outer);
+        callConsequtive(List.of(method));
+        popMethods(outer);
+        recorder.endTestCase(testCase, thread);
+
+        String[] output = finish();
+        assertEquals(4, output.length, "Did not aggregate calls");
+        assertFound(output, new MethodCall(1, method, testCase, 1, 1000));
+        assertFound(output, 3, method, testCase);
+    }
+
+    @Test
+    void countsCallsOutsideTestCases() {
+        String method = "Method" + getUniqueId();
+        callConsequtive(List.of(method, method));
+
+        assertEquals(0, finish().length);
+        // Only the first call of a thread outside of test cases is counted
+        assertEquals(1, ((StackRecorderImpl) recorder).outsideCalls());
+    }
+
+    @Test
+    void doesNotCountThreadsCreatedOutsideTestCases() throws Exception {
+        StackRecorderImpl impl = (StackRecorderImpl) recorder;
+        String testCase = "TestMethod" + getUniqueId();
+        long current = Thread.currentThread().getId();
+        // Leaves a context for the children of this thread to inherit
+        recorder.beginTestCase(testCase, current);
+        recorder.endTestCase(testCase, current);
+
+        Thread thread = new Thread(() -> {});
+        impl.newThread(current, thread);
+        thread.start();
+        thread.join();
+        impl.captureTask(new Object());
+
+        assertNull(impl.captureContext());
+        assertEquals(0, impl.outsideCalls());
+    }
+
+    @Test
+    void recordsCallsOfThreadThatWasOutsideTestCases() {
+        String testCase = "TestMethod" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        long thread = Thread.currentThread().getId();
+
+        callConsequtive(List.of(method));
+        recorder.beginTestCase(testCase, thread);
+        callConsequtive(List.of(method));
+        recorder.endTestCase(testCase, thread);
+        callConsequtive(List.of(method));
+
+        String[] output = finish();
+        assertEquals(1, output.length);
+        assertFound(output, 1, method, testCase);
+        assertEquals(2, ((StackRecorderImpl) recorder).outsideCalls());
+    }
+
+    @Test
+    void recordsEntriesWithoutDepth() {
+        String testCase = "TestMethod" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        String other = "Method" + getUniqueId();
+        long thread = Thread.currentThread().getId();
+
+        recorder.beginTestCase(testCase, thread);
+        recorder.enterMethod(id(method));
+        recorder.enterMethod(id(other));
+        recorder.enterMethod(id(method));
+        recorder.endTestCase(testCase, thread);
+
+        String[] output = finish();
+        assertEquals(2, output.length);
+        assertFound(output, new MethodCall(MethodCall.NO_DEPTH, method, testCase,
+                MethodCall.NO_DEPTH, 2));
+        assertFound(output, MethodCall.NO_DEPTH, other, testCase);
+    }
+
+    @Test
+    void harvestsProbesWhenTestCaseEnds() {
+        String testCase = "TestMethod" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        String other = "Method" + getUniqueId();
+        long thread = Thread.currentThread().getId();
+        boolean[] probes = recorder.registerProbes(new int[] {id(method), id(other)});
+
+        // Set before the test case begins
+        probes[1] = true;
+        recorder.beginTestCase(testCase, thread);
+        probes[0] = true;
+        recorder.endTestCase(testCase, thread);
+
+        String[] output = finish();
+        assertEquals(1, output.length);
+        assertFound(output, MethodCall.NO_DEPTH, method, testCase);
+        assertFalse(probes[0]);
+    }
+
+    @Test
+    void keepsProbesOfRunningTestCaseWhenAnotherBegins() throws Exception {
+        String first = "TestMethod" + getUniqueId();
+        String second = "TestMethod" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        long thread = Thread.currentThread().getId();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        recorder = new StackRecorderImpl(new SynchronizedWriter(new OutputStreamWriter(out)),
+                registry, new PrintLogger(new PrintStream(log, true)));
+        boolean[] probes = recorder.registerProbes(new int[] {id(method)});
+
+        recorder.beginTestCase(first, thread);
+        probes[0] = true;
+        Thread other = new Thread(() -> {
+            long id = Thread.currentThread().getId();
+            recorder.beginTestCase(second, id);
+            recorder.endTestCase(second, id);
+        });
+        other.start();
+        other.join();
+        recorder.endTestCase(first, thread);
+
+        String[] output = finish();
+        assertEquals(1, output.length);
+        assertTrue(log.toString().contains("overlaps"));
+    }
+
+    @Test
+    void recordsFixtureOutsideTestCases() {
+        String fixture = "Fixture" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        long thread = Thread.currentThread().getId();
+
+        recorder.beginFixture(fixture, thread);
+        callConsequtive(List.of(method));
+        recorder.endFixture(fixture, thread);
+
+        String[] output = finish();
+        assertFound(output, 1, method, fixture);
+    }
+
+    @Test
+    void fixtureDoesNotReplaceRunningTestCase() {
+        String testCase = "TestCase" + getUniqueId();
+        String fixture = "Fixture" + getUniqueId();
+        String method = "Method" + getUniqueId();
+        long thread = Thread.currentThread().getId();
+
+        recorder.beginTestCase(testCase, thread);
+        recorder.beginFixture(fixture, thread);
+        callConsequtive(List.of(method));
+        recorder.endFixture(fixture, thread);
+        recorder.endTestCase(testCase, thread);
+
+        String[] output = finish();
+        assertEquals(1, output.length);
+        assertFound(output, 1, method, testCase);
+    }
+
+    @Test
+    void threadInheritsTestCaseWithoutRegistration() throws InterruptedException {
+        String testCase = "TestCase" + getUniqueId();
+        String method = "Method" + getUniqueId();
+
+        long thread = Thread.currentThread().getId();
+        recorder.beginTestCase(testCase, thread);
+        recorder.pushMethod(id("caller"));
+        Thread t = new Thread(() -> {
+            recorder.pushMethod(id(method));
+            recorder.popMethod(id(method));
+        });
+        recorder.popMethod(id("caller"));
+        t.start();
+        t.join();
+        recorder.endTestCase(testCase, thread);
+
+        String[] output = finish();
+        assertFound(output, 2, method, testCase);
+    }
+
     @Test
     void mapsNewThreadToCurrentTestCase() throws InterruptedException {
         String testCase = "TestCase" + getUniqueId();
@@ -112,9 +306,8 @@ class InvocationLoggerTest {
         long thread = Thread.currentThread().getId();
         recorder.beginTestCase(testCase, thread);
         Thread t = newThread(() -> {
-            long child = Thread.currentThread().getId();
-            recorder.pushMethod(method, child);
-            recorder.popMethod(method, child);
+            recorder.pushMethod(id(method));
+            recorder.popMethod(id(method));
         });
         t.start();
         t.join();
@@ -133,12 +326,11 @@ class InvocationLoggerTest {
 
         long thread = Thread.currentThread().getId();
         recorder.beginTestCase(testCase, thread);
-        pushMethods(sequentialMethods, thread);
+        pushMethods(sequentialMethods);
         runInNewThread(thread, () -> {
-            long child = Thread.currentThread().getId();
-            callNested(concurrentMethods, child);
+            callNested(concurrentMethods);
         });
-        popMethods(sequentialMethods, thread);
+        popMethods(sequentialMethods);
         recorder.endTestCase(testCase, thread);
 
         String[] output = finish();
@@ -155,19 +347,18 @@ class InvocationLoggerTest {
 
         final long thread = Thread.currentThread().getId();
         recorder.beginTestCase(testCase, thread);
-        pushMethods(sequentialMethods, thread);
+        pushMethods(sequentialMethods);
         runInNewThread(thread, () -> {
-            long child = Thread.currentThread().getId();
-            callNested(concurrentMethods, child);
+            callNested(concurrentMethods);
         });
-        popMethods(sequentialMethods, thread);
+        popMethods(sequentialMethods);
         recorder.endTestCase(testCase, thread);
         finish();
 
 
         recorder.beginTestCase(testCase, thread);
-        recorder.pushMethod("NewMethod", thread);
-        recorder.popMethod("NewMethod", thread);
+        recorder.pushMethod(id("NewMethod"));
+        recorder.popMethod(id("NewMethod"));
         recorder.endTestCase(testCase, thread);
 
         String[] output = finish();
@@ -180,29 +371,67 @@ class InvocationLoggerTest {
         final long thread = Thread.currentThread().getId();
 
         recorder.beginTestCase(testCase, thread);
-        recorder.pushMethod("NewMethod", thread);
-        recorder.popMethod("NewMethod", thread);
+        recorder.pushMethod(id("NewMethod"));
+        recorder.popMethod(id("NewMethod"));
         recorder.endTestCase(testCase, thread);
         String[] dummy = finish();
         out.reset();
 
-        recorder.pushMethod("NewMethod", thread);
-        recorder.popMethod("NewMethod", thread);
+        recorder.pushMethod(id("NewMethod"));
+        recorder.popMethod(id("NewMethod"));
         String[] output = finish();
 
         assertEquals(0, output.length, "Output not empty: " + String.join("\n", output));
 
         recorder.beginTestCase("NewTestCase", thread);
-        recorder.pushMethod("NewMethod", thread);
-        recorder.popMethod("NewMethod", thread);
+        recorder.pushMethod(id("NewMethod"));
+        recorder.popMethod(id("NewMethod"));
         recorder.endTestCase("NewTestCase", thread);
         String[] secondOutput = finish();
         assertEquals(1, secondOutput.length, "Output was empty: " + String.join("\n", secondOutput));
 
     }
 
+    @Test
+    void childThreadDoesNotRecordAfterTestCaseEnds() throws Exception {
+        String testCase = "TestMethod" + getUniqueId();
+        final long thread = Thread.currentThread().getId();
+        SynchronousQueue<Runnable> tasks = new SynchronousQueue<>();
+
+        recorder.beginTestCase(testCase, thread);
+        Thread worker = newThread(() -> {
+            try {
+                Runnable task;
+                while ((task = tasks.take()) != NO_MORE_TASKS) {
+                    task.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        worker.start();
+        tasks.put(() -> callNested(List.of("Method1")));
+        recorder.endTestCase(testCase, thread);
+        out.reset();
+
+        // The worker still has its stack from the ended test case bound
+        tasks.put(() -> callNested(List.of("Method2")));
+        tasks.put(NO_MORE_TASKS);
+        worker.join();
+
+        String[] output = finish();
+        assertEquals(0, output.length, "Output not empty: " + String.join("\n", output));
+    }
+
+    static final Runnable NO_MORE_TASKS = () -> {
+    };
+
     void assertFound(String[] output, int depth, String method, String testCase) {
-        String expected = new MethodCall(depth, method, testCase).asLine();
+        assertFound(output, new MethodCall(depth, method, testCase));
+    }
+
+    void assertFound(String[] output, MethodCall call) {
+        String expected = call.asLine();
         List<String> lines = List.of(output);
         assertTrue(lines.contains(expected), "Output did not contain method: " + expected);
     }
@@ -250,30 +479,26 @@ class InvocationLoggerTest {
     }
 
     public void callNested(List<String> methods) {
-        callNested(methods, Thread.currentThread().getId());
+        pushMethods(methods);
+        popMethods(methods);
     }
 
-    public void callNested(List<String> methods, long thread) {
-        pushMethods(methods, thread);
-        popMethods(methods, thread);
-    }
-
-    public void pushMethods(List<String> methods, long thread) {
+    public void pushMethods(List<String> methods) {
         for (var method : methods) {
-            recorder.pushMethod(method, thread);
+            recorder.pushMethod(id(method));
         }
     }
 
-    public void popMethods(List<String> methods, long thread) {
+    public void popMethods(List<String> methods) {
         for (var method : methods) {
-            recorder.popMethod(method, thread);
+            recorder.popMethod(id(method));
         }
     }
 
-    public void callConsequtive(List<String> methods, long thread) {
+    public void callConsequtive(List<String> methods) {
         for (var method : methods) {
-            recorder.pushMethod(method, thread);
-            recorder.popMethod(method, thread);
+            recorder.pushMethod(id(method));
+            recorder.popMethod(id(method));
         }
     }
 
@@ -294,6 +519,10 @@ class InvocationLoggerTest {
         return newThread;
     }
 
+    int id(String methodName) {
+        return registry.register(methodName);
+    }
+
     int getUniqueId() {
         return random.nextInt(Integer.MAX_VALUE);
     }
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matrixer.core.runtime.MethodCall;
+
+class MappedWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void truncatesFileToWrittenLength() throws IOException {
+        Path file = dir.resolve("results.txt");
+        MappedWriter writer = new MappedWriter(file, 64);
+        List<MethodCall> calls = List.of(
+                new MethodCall(1, "pkg.Class.method()V", "pkg.Test.test"),
+                new MethodCall(2, "pkg.Class.other()V", "pkg.Test.test", 4, 3));
+        writer.write(calls);
+        writer.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(List.of(calls.get(0).asLine(), calls.get(1).asLine()), lines);
+    }
+
+    @Test
+    void appendsToExistingFile() throws IOException {
+        Path file = dir.resolve("results.txt");
+        Files.writeString(file, "1#First#Test" + System.lineSeparator());
+        MappedWriter writer = new MappedWriter(file, 16);
+        writer.write(List.of(new MethodCall(2, "Second", "Test")));
+        writer.close();
+
+        assertEquals(List.of("1#First#Test", "2#Second#Test"), Files.readAllLines(file));
+    }
+
+    @Test
+    void refusesFileThatIsAlreadyMapped() throws IOException {
+        Path file = dir.resolve("results.txt");
+        MappedWriter writer = new MappedWriter(file, 64);
+        assertThrows(IOException.class, () -> new MappedWriter(file, 64));
+        writer.close();
+
+        new MappedWriter(file, 64).close();
+    }
+
+    @Test
+    void closeWaitsForBatchesBeingWritten() throws Exception {
+        Path file = dir.resolve("results.txt");
+        MappedWriter writer = new MappedWriter(file, 64);
+        int threads = 4;
+        CountDownLatch started = new CountDownLatch(threads);
+        AtomicInteger written = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String test = "Test" + t;
+            workers.add(new Thread(() -> {
+                started.countDown();
+                try {
+                    for (int i = 0; ; i++) {
+                        writer.write(List.of(new MethodCall(i, "Method" + i, test)));
+                        written.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        started.await();
+        writer.close();
+        for (var worker : workers) {
+            worker.join();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(written.get(), lines.size());
+        for (var line : lines) {
+            new MethodCall(line);
+        }
+    }
+
+    @Test
+    void concurrentBatchesAreNotInterleaved() throws Exception {
+        Path file = dir.resolve("results.txt");
+        MappedWriter writer = new MappedWriter(file, 100);
+        int threads = 8;
+        int batches = 200;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String test = "Test" + t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < batches; i++) {
+                    try {
+                        writer.write(List.of(new MethodCall(i, "Method" + i, test)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (var worker : workers) {
+            worker.join();
+        }
+        writer.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(threads * batches, lines.size());
+        assertEquals(threads * batches, new HashSet<>(lines).size());
+        for (var line : lines) {
+            new MethodCall(line);
+        }
+    }
+}
@@ -15,6 +15,107 @@
  */
 package org.matrixer.agent;
 
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matrixer.core.runtime.MethodCall;
+
 public class MatrixerAgentTest {
 
+    @TempDir
+    Path dir;
+
+    Instrumentation inst = instrumentation();
+
+    // The agent this JVM was started with, if any
+    MatrixerAgent previous;
+
+    @BeforeEach
+    void removeAgent() {
+        previous = MatrixerAgent.agent;
+        MatrixerAgent.agent = null;
+    }
+
+    @AfterEach
+    void restoreAgent() {
+        MatrixerAgent.agent = previous;
+        if (previous != null) {
+            InvocationLogger.init(previous.recorder, previous.logger);
+        }
+    }
+
+    @Test
+    void detachWritesRunningTestCasesAndClosesWriter() throws Exception {
+        MatrixerAgent.agentmain(args("file"), inst);
+        MatrixerAgent attached = MatrixerAgent.agent;
+        long thread = Thread.currentThread().getId();
+        int method = attached.registry.register("method");
+        attached.recorder.beginTestCase("TestCase", thread);
+        attached.recorder.pushMethod(method);
+
+        MatrixerAgent.agentmain("detach=true", inst);
+        // The running test case still ends after the agent has detached
+        attached.recorder.popMethod(method);
+        attached.recorder.endTestCase("TestCase", thread);
+
+        assertEquals(List.of(new MethodCall(1, "method", "TestCase").asLine()),
+                Files.readAllLines(dir.resolve("results.txt")));
+        assertFalse(Runtime.getRuntime().removeShutdownHook(attached.shutdownHook));
+    }
+
+    @Test
+    void attachingAgainReplacesPreviousAgent() throws Exception {
+        MatrixerAgent.agentmain(args("mmap"), inst);
+        MatrixerAgent first = MatrixerAgent.agent;
+        MatrixerAgent.agentmain(args("mmap"), inst);
+        MatrixerAgent second = MatrixerAgent.agent;
+
+        assertNotSame(first, second);
+        assertFalse(Runtime.getRuntime().removeShutdownHook(first.shutdownHook));
+        // The mapped file is locked until the first writer is closed
+        assertNotNull(second.writer);
+        assertTrue(second.detach());
+    }
+
+    @Test
+    void keepsAgentThatCannotDetach() throws Exception {
+        MatrixerAgent.agentmain("destfile=" + dir.resolve("results.txt") + ",pkg=none", inst);
+        MatrixerAgent first = MatrixerAgent.agent;
+        MatrixerAgent.agentmain(args("file"), inst);
+
+        assertSame(first, MatrixerAgent.agent);
+        assertTrue(Runtime.getRuntime().removeShutdownHook(first.shutdownHook));
+        first.writer.close();
+    }
+
+    String args(String output) {
+        return "destfile=" + dir.resolve("results.txt") + ",pkg=none,retransform=true,output="
+                + output;
+    }
+
+    // Instrumentation that changes nothing
+    static Instrumentation instrumentation() {
+        return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(),
+                new Class<?>[] {Instrumentation.class}, (proxy, method, args) -> {
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    } else if (type == long.class) {
+                        return 0L;
+                    } else if (type.isArray()) {
+                        return Array.newInstance(type.getComponentType(), 0);
+                    }
+                    return null;
+                });
+    }
 }
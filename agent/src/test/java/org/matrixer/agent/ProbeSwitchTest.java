@@ -0,0 +1,55 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+
+import org.junit.jupiter.api.Test;
+
+class ProbeSwitchTest {
+
+    @Test
+    void armsProbesWhileTestCasesRun() {
+        ProbeSwitch probes = new ProbeSwitch("pushMethod", "popMethod");
+        CallSite site = probes.site("pushMethod");
+        MethodHandle disarmed = site.getTarget();
+        Object first = new Object();
+        Object second = new Object();
+
+        probes.begin(first);
+        MethodHandle armed = site.getTarget();
+        assertNotSame(disarmed, armed);
+        probes.begin(second);
+        probes.end(first);
+        assertTrue(probes.isArmed());
+        assertSame(armed, site.getTarget());
+
+        probes.end(second);
+        assertFalse(probes.isArmed());
+        assertNotSame(armed, site.getTarget());
+    }
+
+    @Test
+    void bindsProbesOfSameNameToOneSite() {
+        ProbeSwitch probes = new ProbeSwitch("pushMethod", "popMethod");
+        assertSame(probes.site("pushMethod"), probes.site("pushMethod"));
+        assertNotSame(probes.site("pushMethod"), probes.site("popMethod"));
+        assertThrows(IllegalArgumentException.class, () -> probes.site("other"));
+    }
+}
@@ -24,6 +24,8 @@ import java.security.ProtectionDomain;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.AgentOptions;
 import org.matrixer.core.runtime.PrintLogger;
 import org.matrixer.core.runtime.MethodCall;
 
@@ -86,6 +88,18 @@ class CallLoggingTransformerTest {
                 t.shouldTransform(location, loader, name));
     }
 
+    @Test
+    void should_not_transform_excluded_class() {
+        AgentOptions options = new AgentOptions(
+                "includes=org.matrixer-test.*:org.other.*,excludes=org.matrixer-test.gen.*");
+        CallLoggingTransformer t =
+                new CallLoggingTransformer(options, new MethodRegistry(), logger);
+        URL location = asURL("file:/tmp/matrixer-test");
+        assertTrue(t.shouldTransform(location, loader, "org/matrixer-test/SomeClass"));
+        assertTrue(t.shouldTransform(location, loader, "org/other/SomeClass"));
+        assertFalse(t.shouldTransform(location, loader, "org/matrixer-test/gen/SomeClass"));
+    }
+
     @Test
     void does_not_transform_boot_strap_classes() {
         CallLoggingTransformer t = new CallLoggingTransformer("org.matrixer", logger);
@@ -101,6 +115,18 @@ class CallLoggingTransformerTest {
                 t.transform(loader, cls.getName(), cls, protectionDomain, getClassBytes(cls)));
     }
 
+    @Test
+    void retransforms_when_enabled() throws IOException {
+        AgentOptions options = new AgentOptions("pkg=org.matrixer.core,retransform=true");
+        CallLoggingTransformer t =
+                new CallLoggingTransformer(options, new MethodRegistry(), logger);
+        final Class<?> cls = MethodCall.class;
+        assertTrue(t.shouldRetransform(cls));
+        assertFalse(t.shouldRetransform(String.class));
+        assertNotNull(t.transform(loader, "org/matrixer/core/runtime/MethodCall", cls,
+                cls.getProtectionDomain(), getClassBytes(cls)));
+    }
+
     @Test
     void class_in_test_directory_is_test_class() {
         CallLoggingTransformer t = new CallLoggingTransformer("org.matrixer", logger);
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.AgentOptions;
+import org.matrixer.core.runtime.NoopLogger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+class ClassCacheTest {
+
+    static final String SAMPLE = InstrumenterTest.Sample.class.getName();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keyDependsOnOptionsAndKind() throws IOException {
+        byte[] bytes = classBytes();
+        ClassCache cache = new ClassCache(null, "a", new MethodRegistry(), new NoopLogger());
+        ClassCache other = new ClassCache(null, "b", new MethodRegistry(), new NoopLogger());
+
+        assertEquals(cache.key(false, bytes), cache.key(false, bytes.clone()));
+        assertNotEquals(cache.key(false, bytes), cache.key(true, bytes));
+        assertNotEquals(cache.key(false, bytes), other.key(false, bytes));
+    }
+
+    @Test
+    void agentVersionIsStable() {
+        String version = ClassCache.agentVersion();
+        assertNotNull(version);
+        assertEquals(version, ClassCache.agentVersion());
+    }
+
+    @Test
+    void prunesOldAndLeastRecentlyUsedEntries() throws IOException {
+        long now = System.currentTimeMillis();
+        Path old = entry("old", 10, now - Duration.ofDays(40).toMillis());
+        Path used = entry("used", 100, now - Duration.ofHours(2).toMillis());
+        Path recent = entry("recent", 100, now - Duration.ofHours(1).toMillis());
+        ClassCache cache = new ClassCache(dir, "", new MethodRegistry(), new NoopLogger());
+
+        cache.prune(150, Duration.ofDays(30));
+
+        assertFalse(Files.exists(old));
+        assertFalse(Files.exists(used));
+        assertTrue(Files.exists(recent));
+    }
+
+    Path entry(String name, int size, long modified) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+        return file;
+    }
+
+    @Test
+    void returnsSameBytesFromMemory() throws IOException {
+        ClassCache cache = new ClassCache(null, "", new MethodRegistry(), new NoopLogger());
+        byte[] bytes = classBytes();
+        String key = cache.key(false, bytes);
+        assertNull(cache.get(key));
+
+        cache.put(key, bytes, List.of());
+        assertSame(bytes, cache.get(key));
+    }
+
+    @Test
+    void remapsMethodIdsOfDiskEntries() throws IOException {
+        MethodRegistry first = new MethodRegistry();
+        List<String> methodNames = new ArrayList<>();
+        byte[] instrumented = new Instrumenter(first, false)
+                .instrumentTargetClass(Opcodes.ASM9, SAMPLE.replace('.', '/'), classBytes(),
+                        methodNames);
+        ClassCache cache = new ClassCache(dir, "", first, new NoopLogger());
+        String key = cache.key(false, classBytes());
+        cache.put(key, instrumented, methodNames);
+
+        // Another JVM that has registered other methods before
+        MethodRegistry second = new MethodRegistry();
+        for (int i = 0; i < 200; i++) {
+            second.register("other.Class.method" + i + "()V");
+        }
+        ClassCache otherCache = new ClassCache(dir, "", second, new NoopLogger());
+        byte[] loaded = otherCache.get(key);
+
+        assertNotNull(loaded);
+        assertEquals(probedMethods(instrumented, first), probedMethods(loaded, second));
+        StringWriter errors = new StringWriter();
+        CheckClassAdapter.verify(new ClassReader(loaded), false, new PrintWriter(errors));
+        assertEquals("", errors.toString());
+    }
+
+    @Test
+    void remapsMethodIdsOfProbeArrays() throws IOException {
+        MethodRegistry first = new MethodRegistry();
+        Instrumenter instrumenter = new Instrumenter(first, false);
+        instrumenter.setMode(AgentOptions.MODE_PROBES);
+        List<String> methodNames = new ArrayList<>();
+        byte[] instrumented = instrumenter.instrumentTargetClass(Opcodes.ASM9,
+                SAMPLE.replace('.', '/'), classBytes(), methodNames);
+        ClassCache cache = new ClassCache(dir, "", first, new NoopLogger());
+        String key = cache.key(false, classBytes());
+        cache.put(key, instrumented, methodNames);
+
+        MethodRegistry second = new MethodRegistry();
+        for (int i = 0; i < 200; i++) {
+            second.register("other.Class.method" + i + "()V");
+        }
+        byte[] loaded = new ClassCache(dir, "", second, new NoopLogger()).get(key);
+
+        assertNotNull(loaded);
+        assertEquals(methodNames, probeArrayMethods(instrumented, first));
+        assertEquals(methodNames, probeArrayMethods(loaded, second));
+    }
+
+    @Test
+    void ignoresCorruptEntries() throws IOException {
+        ClassCache cache = new ClassCache(dir, "", new MethodRegistry(), new NoopLogger());
+        String key = cache.key(false, classBytes());
+        Files.write(dir.resolve(key), new byte[] {1, 2, 3});
+        assertNull(cache.get(key));
+    }
+
+    // The names of the methods loaded before each probe, in order
+    List<String> probedMethods(byte[] bytes, MethodRegistry registry) {
+        ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        List<String> names = new ArrayList<>();
+        for (MethodNode method : cn.methods) {
+            for (AbstractInsnNode insn : method.instructions) {
+                if (insn instanceof MethodInsnNode
+                        && ((MethodInsnNode) insn).owner.endsWith("InvocationLogger")) {
+                    names.add(registry.name(intValue(insn.getPrevious())));
+                }
+            }
+        }
+        assertFalse(names.isEmpty(), "No probes found");
+        return names;
+    }
+
+    // The names of the methods stored in the probe array, by probe index
+    List<String> probeArrayMethods(byte[] bytes, MethodRegistry registry) {
+        ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        List<String> names = new ArrayList<>();
+        for (MethodNode method : cn.methods) {
+            if (!method.name.equals(LoggingClassAdapter.PROBE_INIT)) {
+                continue;
+            }
+            for (AbstractInsnNode insn : method.instructions) {
+                if (insn.getOpcode() == Opcodes.IASTORE) {
+                    names.add(registry.name(intValue(insn.getPrevious())));
+                }
+            }
+        }
+        return names;
+    }
+
+    static int intValue(AbstractInsnNode load) {
+        if (load instanceof IntInsnNode) {
+            return ((IntInsnNode) load).operand;
+        }
+        if (load.getOpcode() == Opcodes.LDC) {
+            return (Integer) ((LdcInsnNode) load).cst;
+        }
+        return load.getOpcode() - Opcodes.ICONST_0;
+    }
+
+    byte[] classBytes() throws IOException {
+        String resource = "/" + SAMPLE.replace('.', '/') + ".class";
+        try (InputStream in = getClass().getResourceAsStream(resource)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ClassFilterTest {
+
+    @Test
+    void matchesPackagePrefix() {
+        ClassFilter filter = new ClassFilter(List.of("org.matrixer.*"), List.of());
+        assertTrue(filter.matches("org/matrixer/Sample"));
+        assertTrue(filter.matches("org/matrixer/inner/Sample"));
+        assertFalse(filter.matches("org/other/Sample"));
+        assertFalse(filter.matches("org/matrix"));
+    }
+
+    @Test
+    void matchesSeveralIncludes() {
+        ClassFilter filter = new ClassFilter(List.of("org.a.*", "org.b.*", "com.c.Exact"),
+                List.of());
+        assertTrue(filter.matches("org/a/Sample"));
+        assertTrue(filter.matches("org/b/Sample"));
+        assertTrue(filter.matches("com/c/Exact"));
+        assertFalse(filter.matches("com/c/Exactly"));
+        assertFalse(filter.matches("org/c/Sample"));
+    }
+
+    @Test
+    void matchesWildcardsInsidePattern() {
+        ClassFilter filter = new ClassFilter(List.of("org.*.service.*Impl", "org.x?z.*"),
+                List.of());
+        assertTrue(filter.matches("org/app/service/UserServiceImpl"));
+        assertFalse(filter.matches("org/app/service/UserService"));
+        assertTrue(filter.matches("org/xyz/Sample"));
+        assertFalse(filter.matches("org/xz/Sample"));
+    }
+
+    @Test
+    void excludesOverrideIncludes() {
+        ClassFilter filter = new ClassFilter(List.of("org.matrixer.*"),
+                List.of("org.matrixer.generated.*", "*$Builder"));
+        assertTrue(filter.matches("org/matrixer/Sample"));
+        assertFalse(filter.matches("org/matrixer/generated/Sample"));
+        assertFalse(filter.matches("org/matrixer/Sample$Builder"));
+    }
+
+    @Test
+    void emptyPrefixMatchesEverything() {
+        ClassFilter filter = new ClassFilter(List.of("*"), List.of());
+        assertTrue(filter.matches("any/Class"));
+    }
+
+    @Test
+    void noIncludesMatchesNothing() {
+        ClassFilter filter = new ClassFilter(List.of(), List.of());
+        assertFalse(filter.matches("any/Class"));
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+
+import org.junit.jupiter.api.Test;
+
+class ClassHierarchyTest {
+
+    ClassHierarchy hierarchy = new ClassHierarchy();
+    ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    void findsCommonSuperClass() {
+        assertEquals("java/lang/Number",
+                hierarchy.commonSuperClass("java/lang/Integer", "java/lang/Long", loader));
+        assertEquals("java/util/AbstractList",
+                hierarchy.commonSuperClass("java/util/ArrayList", "java/util/Vector", loader));
+    }
+
+    @Test
+    void findsSuperClassOfOther() {
+        assertEquals("java/lang/Number",
+                hierarchy.commonSuperClass("java/lang/Integer", "java/lang/Number", loader));
+        assertEquals("java/lang/Number",
+                hierarchy.commonSuperClass("java/lang/Number", "java/lang/Integer", null));
+    }
+
+    @Test
+    void findsApplicationClasses() {
+        String sample = InstrumenterTest.Sample.class.getName().replace('.', '/');
+        String frames = InstrumenterTest.Frames.class.getName().replace('.', '/');
+        assertEquals("java/lang/Object", hierarchy.commonSuperClass(sample, frames, loader));
+        assertEquals(sample, hierarchy.commonSuperClass(sample, sample, loader));
+    }
+
+    @Test
+    void interfacesHaveObjectAsSuperClass() {
+        assertEquals("java/lang/Object",
+                hierarchy.commonSuperClass("java/util/List", "java/util/ArrayList", loader));
+    }
+
+    @Test
+    void unknownClassesAreNotResolved() {
+        assertThrows(ClassHierarchy.TypeNotFoundException.class,
+                () -> hierarchy.commonSuperClass("no/such/Class", "java/lang/Integer", loader));
+    }
+
+    @Test
+    void doesNotCacheClassesThatWereNotFound() {
+        String sample = InstrumenterTest.Sample.class.getName().replace('.', '/');
+        HidingLoader hiding = new HidingLoader(loader);
+        assertThrows(ClassHierarchy.TypeNotFoundException.class,
+                () -> hierarchy.commonSuperClass(sample, "java/lang/Integer", hiding));
+
+        hiding.hidden = false;
+        assertEquals("java/lang/Object",
+                hierarchy.commonSuperClass(sample, "java/lang/Integer", hiding));
+    }
+
+    static class HidingLoader extends ClassLoader {
+        volatile boolean hidden = true;
+
+        HidingLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            return hidden && name.startsWith("org/") ? null : super.getResourceAsStream(name);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.matrixer.agent.internal.MethodRegistry;
+import org.matrixer.core.runtime.AgentOptions;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+class InstrumenterTest {
+
+    static final String SAMPLE = Sample.class.getName();
+
+    @Test
+    void instrumentsAllMethodsByDefault() throws IOException {
+        Set<String> methods = instrument(MethodFilter.NONE);
+        assertTrue(methods.contains("getValue()I"));
+        assertTrue(methods.contains("setValue(I)V"));
+        assertTrue(methods.contains("compareTo(Ljava/lang/Object;)I"), "Bridge not instrumented");
+        assertTrue(methods.stream().anyMatch(m -> m.startsWith("lambda$")));
+    }
+
+    @Test
+    void skipsBridgeMethods() throws IOException {
+        Set<String> methods = instrument(new MethodFilter(true, false, false, false, 0));
+        assertFalse(methods.contains("compareTo(Ljava/lang/Object;)I"));
+        assertTrue(methods.contains("compareTo(L" + SAMPLE.replace('.', '/') + ";)I"));
+        assertTrue(methods.stream().anyMatch(m -> m.startsWith("lambda$")));
+    }
+
+    @Test
+    void skipsSyntheticMethods() throws IOException {
+        Set<String> methods = instrument(new MethodFilter(false, true, false, false, 0));
+        assertFalse(methods.contains("compareTo(Ljava/lang/Object;)I"));
+        assertFalse(methods.stream().anyMatch(m -> m.startsWith("lambda$")));
+        assertTrue(methods.contains("work()V"));
+    }
+
+    @Test
+    void skipsAccessors() throws IOException {
+        Set<String> methods = instrument(new MethodFilter(false, false, true, false, 0));
+        assertFalse(methods.contains("getValue()I"));
+        assertFalse(methods.contains("setValue(I)V"));
+        assertFalse(methods.contains("getName()Ljava/lang/String;"));
+        assertTrue(methods.contains("twice()I"));
+    }
+
+    @Test
+    void skipsSmallMethods() throws IOException {
+        Set<String> methods = instrument(new MethodFilter(false, false, false, false, 5));
+        assertFalse(methods.contains("getValue()I"));
+        assertFalse(methods.contains("setValue(I)V"));
+        assertTrue(methods.contains("twice()I"));
+    }
+
+    @Test
+    void mapsLambdasToEnclosingMethod() throws IOException {
+        Set<String> methods = instrument(new MethodFilter(false, true, false, true, 0));
+        assertFalse(methods.stream().anyMatch(m -> m.startsWith("lambda$")));
+        assertTrue(methods.contains("work()V"));
+    }
+
+    @Test
+    void keepsValidFrames() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        assertVerifies(Frames.class, instrumenter.instrumentTargetClass(Opcodes.ASM9,
+                vmName(Frames.class), classBytes(Frames.class)));
+        assertVerifies(Sample.class, instrumenter.instrumentTargetClass(Opcodes.ASM9,
+                vmName(Sample.class), classBytes(Sample.class)));
+    }
+
+    @Test
+    void computesValidFrames() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        instrumenter.setComputeFrames(true);
+        assertVerifies(Frames.class, instrumenter.instrumentTargetClass(Opcodes.ASM9,
+                vmName(Frames.class), classBytes(Frames.class)));
+    }
+
+    @Test
+    void keepsValidFramesInTestClasses() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        Class<?> testClass = ClassHierarchyTest.class;
+        assertVerifies(testClass, instrumenter.instrumentTestClass(Opcodes.ASM9,
+                vmName(testClass), classBytes(testClass)));
+    }
+
+    @Test
+    void setsProbeWhenMethodIsEntered() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        instrumenter.setMode(AgentOptions.MODE_PROBES);
+        List<String> methodNames = new ArrayList<>();
+        byte[] bytes = instrumenter.instrumentTargetClass(Opcodes.ASM9, vmName(Sample.class),
+                classBytes(), methodNames);
+        assertEquals(Set.of(), callersOf("pushMethod", bytes));
+        assertEquals(Set.of("<clinit>"), callersOf(LoggingClassAdapter.PROBE_INIT, bytes));
+
+        Class<?> cls = Class.forName(SAMPLE, true, load(Sample.class, bytes));
+        var constructor = cls.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Method twice = cls.getDeclaredMethod("twice");
+        twice.setAccessible(true);
+        twice.invoke(constructor.newInstance());
+
+        Field field = cls.getDeclaredField(LoggingClassAdapter.PROBE_FIELD);
+        field.setAccessible(true);
+        boolean[] probes = (boolean[]) field.get(null);
+        assertEquals(methodNames.size(), probes.length);
+        for (int i = 0; i < probes.length; i++) {
+            assertEquals(methodNames.get(i).equals(SAMPLE + ".twice()I"), probes[i],
+                    methodNames.get(i));
+        }
+        // Not recorded by the agent running the tests
+        Arrays.fill(probes, false);
+    }
+
+    @Test
+    void logsOnlyEntriesInEntryMode() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        instrumenter.setMode(AgentOptions.MODE_ENTRY);
+        byte[] bytes = instrumenter.instrumentTargetClass(Opcodes.ASM9, vmName(Frames.class),
+                classBytes(Frames.class));
+
+        assertEquals(Set.of("loop", "common", "choose"), callersOf("enterMethod", bytes));
+        assertEquals(Set.of(), callersOf("popMethod", bytes));
+        assertVerifies(Frames.class, bytes);
+    }
+
+    @Test
+    void linksSwitchableProbesDynamically() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        instrumenter.setSwitchable(true);
+        byte[] bytes = instrumenter.instrumentTargetClass(Opcodes.ASM9, vmName(Frames.class),
+                classBytes(Frames.class));
+
+        assertEquals(Set.of(), callersOf("pushMethod", bytes));
+        Set<String> linked = new HashSet<>();
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                    String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitInvokeDynamicInsn(String probe, String desc, Handle bsm,
+                            Object... args) {
+                        linked.add(name + ":" + probe);
+                    }
+                };
+            }
+        }, 0);
+        assertTrue(linked.contains("loop:pushMethod"));
+        assertTrue(linked.contains("loop:popMethod"));
+        assertVerifies(Frames.class, bytes);
+    }
+
+    @Test
+    void keepsValidFramesWithProbes() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        instrumenter.setMode(AgentOptions.MODE_PROBES);
+        assertVerifies(Frames.class, instrumenter.instrumentTargetClass(Opcodes.ASM9,
+                vmName(Frames.class), classBytes(Frames.class)));
+        assertVerifies(Named.class, instrumenter.instrumentTargetClass(Opcodes.ASM9,
+                vmName(Named.class), classBytes(Named.class)));
+    }
+
+    @Test
+    void recordsLifecycleMethodsInFixture() throws Exception {
+        Instrumenter instrumenter = new Instrumenter(new MethodRegistry());
+        Class<?> testClass = CallLoggingTransformerTest.class;
+        byte[] plain = instrumenter.instrumentTestClass(Opcodes.ASM9, vmName(testClass),
+                classBytes(testClass));
+        instrumenter.setFixtures(true);
+        byte[] fixtures = instrumenter.instrumentTestClass(Opcodes.ASM9, vmName(testClass),
+                classBytes(testClass));
+
+        assertEquals(Set.of(), callersOf("beginFixture", plain));
+        assertEquals(Set.of("setup", "<clinit>"), callersOf("beginFixture", fixtures));
+        assertVerifies(testClass, fixtures);
+    }
+
+    // Returns the methods that call a method of the invocation logger
+    static Set<String> callersOf(String method, byte[] bytes) {
+        Set<String> callers = new HashSet<>();
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                    String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String called,
+                            String desc, boolean isInterface) {
+                        if (called.equals(method)) {
+                            callers.add(name);
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return callers;
+    }
+
+    // Initializing the class makes the JVM verify it
+    void assertVerifies(Class<?> cls, byte[] bytes) throws Exception {
+        ClassLoader loader = load(cls, bytes);
+        assertDoesNotThrow(() -> Class.forName(cls.getName(), true, loader));
+    }
+
+    // A loader that defines the class from the bytes
+    ClassLoader load(Class<?> cls, byte[] bytes) {
+        return new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve)
+                    throws ClassNotFoundException {
+                if (name.equals(cls.getName())) {
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+    }
+
+    static String vmName(Class<?> cls) {
+        return cls.getName().replace('.', '/');
+    }
+
+    Set<String> instrument(MethodFilter filter) throws IOException {
+        MethodRegistry registry = new MethodRegistry();
+        Instrumenter instrumenter = new Instrumenter(registry, filter, false);
+        String className = SAMPLE.replace('.', '/');
+        instrumenter.instrumentTargetClass(Opcodes.ASM9, className, classBytes());
+
+        Set<String> methods = new HashSet<>();
+        for (int id = 0; id < registry.size(); id++) {
+            methods.add(registry.name(id).substring(SAMPLE.length() + 1));
+        }
+        return methods;
+    }
+
+    byte[] classBytes() throws IOException {
+        return classBytes(Sample.class);
+    }
+
+    byte[] classBytes(Class<?> cls) throws IOException {
+        String resource = "/" + vmName(cls) + ".class";
+        try (InputStream in = getClass().getResourceAsStream(resource)) {
+            return in.readAllBytes();
+        }
+    }
+
+    static class Frames {
+        long loop(long n, double d, String s) {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                Object value = i % 2 == 0 ? s : Integer.valueOf(i);
+                try {
+                    sum += Long.parseLong(value.toString());
+                } catch (NumberFormatException e) {
+                    sum -= (long) d;
+                    continue;
+                } finally {
+                    sum++;
+                }
+                if (sum > 100) {
+                    break;
+                }
+            }
+            return sum;
+        }
+
+        static CharSequence common(boolean b) {
+            CharSequence value = b ? new StringBuilder() : new StringBuffer();
+            synchronized (Frames.class) {
+                return value;
+            }
+        }
+
+        Number choose(int i) {
+            switch (i) {
+                case 0:
+                    return Integer.valueOf(0);
+                case 1:
+                    return Long.valueOf(1);
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    interface Named {
+        String name();
+
+        default String label() {
+            return "<" + name() + ">";
+        }
+    }
+
+    static class Sample implements Comparable<Sample> {
+        static String name;
+        int value;
+
+        int getValue() {
+            return value;
+        }
+
+        void setValue(int value) {
+            this.value = value;
+        }
+
+        static String getName() {
+            return name;
+        }
+
+        int twice() {
+            return value * 2;
+        }
+
+        void work() {
+            Runnable outer = () -> {
+                Runnable inner = () -> value++;
+                inner.run();
+            };
+            outer.run();
+        }
+
+        @Override
+        public int compareTo(Sample o) {
+            return Integer.compare(value, o.value);
+        }
+    }
+}
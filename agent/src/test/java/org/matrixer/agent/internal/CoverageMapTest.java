@@ -0,0 +1,73 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class CoverageMapTest {
+
+    @Test
+    void countsCallsPerDepth() {
+        CoverageMap map = new CoverageMap();
+        map.record(7, 3);
+        map.record(7, 1);
+        map.record(7, 3);
+
+        assertEquals(2, map.size());
+        assertEquals(7, map.methodId(0));
+        assertEquals(3, map.depth(0));
+        assertEquals(2, map.count(0));
+        assertEquals(7, map.methodId(1));
+        assertEquals(1, map.depth(1));
+        assertEquals(1, map.count(1));
+    }
+
+    @Test
+    void keepsOrderOfFirstCallWhenGrowing() {
+        CoverageMap map = new CoverageMap(4);
+        for (int id = 1000; id > 0; id--) {
+            map.record(id, id);
+            map.record(id, id);
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(1000 - i, map.methodId(i));
+            assertEquals(2, map.count(i));
+        }
+    }
+
+    @Test
+    void mergesMaps() {
+        CoverageMap a = new CoverageMap();
+        a.record(1, 2);
+        a.record(2, 2);
+        CoverageMap b = new CoverageMap();
+        b.record(2, 6);
+        b.record(3, 1);
+        b.record(2, 2);
+
+        a.addAll(b);
+        assertEquals(4, a.size());
+        assertEquals(2, a.methodId(1));
+        assertEquals(2, a.depth(1));
+        assertEquals(2, a.count(1));
+        assertEquals(2, a.methodId(2));
+        assertEquals(6, a.depth(2));
+        assertEquals(3, a.methodId(3));
+    }
+}
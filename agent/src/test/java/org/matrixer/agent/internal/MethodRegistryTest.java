@@ -0,0 +1,54 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class MethodRegistryTest {
+
+    @Test
+    void assignsDenseIds() {
+        MethodRegistry registry = new MethodRegistry();
+        assertEquals(0, registry.register("a.A.m()V"));
+        assertEquals(1, registry.register("a.A.n()V"));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    void sameNameGetsSameId() {
+        MethodRegistry registry = new MethodRegistry();
+        int id = registry.register("a.A.m()V");
+        registry.register("a.A.n()V");
+        assertEquals(id, registry.register("a.A.m()V"));
+    }
+
+    @Test
+    void resolvesNames() {
+        MethodRegistry registry = new MethodRegistry();
+        for (int i = 0; i < 5000; i++) {
+            registry.register("a.A.m" + i + "()V");
+        }
+        assertEquals("a.A.m4321()V", registry.name(4321));
+    }
+
+    @Test
+    void throwsOnUnknownId() {
+        MethodRegistry registry = new MethodRegistry();
+        assertThrows(IllegalArgumentException.class, () -> registry.name(0));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.agent.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class ThreadStackTest {
+
+    @Test
+    void detachedStackMergesCallsAtBaseDepth() {
+        TestCase tc = new TestCase("test");
+        ThreadStack stack = new ThreadStack(1, new TaskContext(tc, 3), true);
+
+        assertTrue(tc.threads().isEmpty());
+        stack.record(7, stack.push());
+        stack.record(8, stack.push());
+        stack.pop();
+        assertEquals(0, tc.coverage().size());
+        stack.pop();
+
+        assertEquals(0, stack.coverage().size());
+        CoverageMap calls = tc.coverage();
+        assertEquals(2, calls.size());
+        assertEquals(4, calls.depth(0));
+        assertEquals(5, calls.depth(1));
+    }
+
+    @Test
+    void childStackMergesCallsWhenItReturnsToParentDepth() {
+        TestCase tc = new TestCase("test");
+        ThreadStack parent = new ThreadStack(1, tc);
+        parent.push();
+        ThreadStack child = new ThreadStack(2, parent);
+
+        child.record(7, child.push());
+        // Not read until the child has returned to the depth it began at
+        assertEquals(0, tc.coverage().size());
+        child.pop();
+
+        assertEquals(0, child.coverage().size());
+        assertEquals(2, tc.coverage().depth(0));
+    }
+
+    @Test
+    void taskStackMergesCallsWhenTaskEnds() {
+        TestCase tc = new TestCase("test");
+        ThreadStack stack = new ThreadStack(1, new TaskContext(tc, 0), false);
+
+        stack.beginTask("task", 2, null);
+        stack.record(7, stack.push());
+        assertEquals(0, tc.coverage().size());
+        stack.endTask();
+
+        assertEquals(3, tc.coverage().depth(0));
+    }
+
+    @Test
+    void samplesFirstInvocationsOfEachMethod() {
+        ThreadStack stack = new ThreadStack(1, new TestCase("test", new Sampling(2, 1)));
+
+        assertTrue(stack.sample(1));
+        assertTrue(stack.sample(1));
+        assertFalse(stack.sample(1));
+        assertTrue(stack.sample(1000));
+        assertFalse(stack.sample(1));
+    }
+
+    @Test
+    void samplesInvocationsOfAllThreadsOfTestCase() {
+        TestCase tc = new TestCase("test", new Sampling(2, 1));
+        ThreadStack first = new ThreadStack(1, tc);
+        ThreadStack second = new ThreadStack(2, first);
+
+        assertTrue(first.sample(1));
+        assertTrue(second.sample(1));
+        assertFalse(first.sample(1));
+        assertFalse(second.sample(1));
+    }
+
+    @Test
+    void samplesOneInK() {
+        ThreadStack stack = new ThreadStack(1, new TestCase("test", new Sampling(0, 3)));
+
+        int sampled = 0;
+        for (int i = 0; i < 9; i++) {
+            if (stack.sample(4)) {
+                sampled++;
+            }
+        }
+        assertEquals(3, sampled);
+    }
+
+    @Test
+    void detachedStackRecordsEntriesInTestCase() {
+        TestCase tc = new TestCase("test");
+        ThreadStack stack = new ThreadStack(1, new TaskContext(tc, 3), true);
+
+        stack.recordEntry(7, 0);
+        assertEquals(0, stack.coverage().size());
+        assertEquals(1, tc.coverage().size());
+        assertEquals(3, stack.depth());
+    }
+
+    @Test
+    void detachedStackIsReleasedWhenTestCaseEnds() {
+        TestCase tc = new TestCase("test");
+        ThreadStack stack = new ThreadStack(1, new TaskContext(tc, 0), true);
+        assertFalse(stack.isReleased());
+        tc.end();
+        assertTrue(stack.isReleased());
+    }
+
+    @Test
+    void inheritedStackIsMappedUnlessDetached() {
+        TestCase tc = new TestCase("test");
+        ThreadStack stack = new ThreadStack(1, new TaskContext(tc, 2), false);
+        assertEquals(2, stack.depth());
+        assertTrue(tc.threads().contains(stack));
+    }
+}
@@ -17,6 +17,7 @@ package org.matrixer.cli;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.time.Duration;
 
@@ -65,22 +66,32 @@ public class App {
         if (!properties.isValid()) {
             throw new IllegalArgumentException(properties.reasonForFailure());
         }
-        project = prepareProject();
-
-        if (properties.shouldRun()) {
-            ExecInfo info = runProject();
-            if (info.status != 0) {
-                throw new RuntimeException("Target project tests exited with error(" + info.status
-                        + ") see logfile for details");
+        Collector collector = null;
+        try {
+            if (properties.shouldCollect() && properties.shouldRun()) {
+                collector = startCollector();
+            }
+            project = prepareProject();
+
+            if (properties.shouldRun()) {
+                ExecInfo info = runProject();
+                if (info.status != 0) {
+                    throw new RuntimeException("Target project tests exited with error("
+                            + info.status + ") see logfile for details");
+                }
+                System.out.println("Target project tests was run successfully!"
+                        + "\nTime: " + formatTime(info.duration)
+                        + " (" + info.duration.toMillis() + "ms)");
             }
-            System.out.println("Target project tests was run successfully!"
-                    + "\nTime: " + formatTime(info.duration)
-                    + " (" + info.duration.toMillis() + "ms)");
-        }
 
-        if (properties.shouldAnalyze()) {
-            data = analyzeProject();
-            printSummary(data, System.out);
+            if (properties.shouldAnalyze()) {
+                data = collector != null ? collectResults(collector) : analyzeProject();
+                printSummary(data, System.out);
+            }
+        } finally {
+            if (collector != null) {
+                collector.close();
+            }
         }
 
         if (properties.shouldReport()) {
@@ -102,6 +113,20 @@ public class App {
         return preparer.prepare(properties);
     }
 
+    private Collector startCollector() throws IOException {
+        Collector collector = new Collector();
+        properties.setCollectorAddress(collector.address());
+        System.out.println("Collecting results on " + collector.address());
+        return collector;
+    }
+
+    private ExecutionData collectResults(Collector collector)
+            throws IOException, InterruptedException {
+        ExecutionData results = collector.finish();
+        // Test JVMs that could not reach the collector wrote results files
+        return results.merge(analyzeProject());
+    }
+
     private ExecInfo runProject() {
         System.out.println("Running target project tests");
         ProjectRunner runner = new ProjectRunner();
@@ -114,17 +139,18 @@ public class App {
     }
 
     private ExecutionData analyzeProject() throws IOException {
-        Path file = project.resultsFile();
-        System.out.println("Analyzing results in " + file);
-        if (!Files.exists(file)) {
-            throw new RuntimeException("File did not exist: " + file);
+        // Each test JVM writes a results file of its own
+        Path dir = project.outputDirectory();
+        System.out.println("Analyzing results in " + dir);
+        if (!Files.isDirectory(dir)) {
+            throw new RuntimeException("Directory did not exist: " + dir);
         }
-        try (var in = Files.newInputStream(file, StandardOpenOption.TRUNCATE_EXISTING)) {
+        try {
             Analyzer analyzer = new Analyzer();
-            ExecutionData results = analyzer.analyze(in);
+            ExecutionData results = analyzer.analyze(dir, Project.RESULTS_FILE_GLOB);
             return results;
-        } catch (IOException e) {
-            var ex = new IOException("Analyzing " + file + ": " + e.getMessage());
+        } catch (IOException | UncheckedIOException e) {
+            var ex = new IOException("Analyzing " + dir + ": " + e.getMessage());
             ex.initCause(e);
             throw ex;
         }
@@ -180,7 +206,8 @@ public class App {
                         + "--testpkg - root package name of the tests, will be used to identify test cases (defaults to --pkg)\n\t"
                         + "--output  - the location where logs and results will be stored. Defaults to build/matrix-cov for gradle and target/matrix-cov for maven\n\t"
                         + "--git     - if the project is remote, provide a URL to the repository\n\t"
-                        + "--analyze - skip the running of tests and only analyze existing results\n"
+                        + "--analyze - skip the running of tests and only analyze existing results\n\t"
+                        + "--collect - stream the results to matrixer while the tests run instead of writing results files\n"
                         + "--skip-instrument - skip build script manipulation. For manual manipulation of buildscript\n\t");
     }
 
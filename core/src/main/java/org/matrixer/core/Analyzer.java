@@ -16,7 +16,23 @@
 package org.matrixer.core;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
 
+import org.matrixer.core.runtime.BinaryDecoder;
+import org.matrixer.core.runtime.BinaryFormat;
 import org.matrixer.core.runtime.MethodCall;
 
 /**
@@ -24,8 +40,28 @@ import org.matrixer.core.runtime.MethodCall;
  */
 public class Analyzer {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final int chunkSize;
+
+    public Analyzer() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize
+     *            the size in bytes of the parts of a text results file
+     *            that are parsed in parallel
+     */
+    Analyzer(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
     /**
-     * Parses execution data from source
+     * Parses execution data from source. The format of the data, text or
+     * binary, and whether it is gzip compressed is detected from the first
+     * bytes.
      *
      * @param source
      *            A stream containing execution data from the agent
@@ -33,13 +69,199 @@ public class Analyzer {
      * @returns the aggregated execution data
      */
     public ExecutionData analyze(InputStream source) {
+        BufferedInputStream in = decompress(new BufferedInputStream(source, BUFFER_SIZE));
+        if (isBinary(in)) {
+            return analyzeBinary(in);
+        }
+        return analyzeText(in);
+    }
+
+    /**
+     * Parses the results files in a directory in parallel, and merges
+     * their execution data. Each test JVM that ran at the same time writes
+     * a file of its own.
+     *
+     * @param directory
+     *            the directory containing the results files
+     * @param glob
+     *            matches the names of the results files
+     *
+     * @returns the aggregated execution data of all files
+     */
+    public ExecutionData analyze(Path directory, String glob) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        return files.parallelStream()
+                .map(this::analyzeFile)
+                .reduce(ExecutionData::merge)
+                .orElseGet(ExecutionData::new);
+    }
+
+    /**
+     * Parses execution data from a results file. Uncompressed text files
+     * are memory mapped and split into chunks at line boundaries, which are
+     * parsed in parallel and then merged.
+     *
+     * @param file
+     *            a results file written by the agent
+     *
+     * @returns the aggregated execution data
+     */
+    public ExecutionData analyze(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (isPlainText(channel)) {
+                return ForkJoinPool.commonPool().invoke(new ChunkTask(channel, 0, channel.size()));
+            }
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            return analyze(in);
+        }
+    }
+
+    private ExecutionData analyzeFile(Path file) {
+        try {
+            return analyze(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isPlainText(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BinaryFormat.MAGIC.length);
+        int length = Math.max(channel.read(header, 0), 0);
+        byte[] bytes = header.array();
+        int magic = (bytes[0] & 0xff) | ((bytes[1] & 0xff) << 8);
+        return magic != GZIPInputStream.GZIP_MAGIC && !BinaryFormat.isBinary(bytes, length);
+    }
+
+    /**
+     * Parses a range of a text results file, splitting it in two at a line
+     * boundary while it is larger than the chunk size.
+     */
+    private class ChunkTask extends RecursiveTask<ExecutionData> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected ExecutionData compute() {
+            try {
+                if (end - start > chunkSize) {
+                    long middle = nextLine(start + (end - start) / 2);
+                    if (middle < end) {
+                        ChunkTask second = new ChunkTask(channel, middle, end);
+                        second.fork();
+                        ExecutionData data = new ChunkTask(channel, start, middle).compute();
+                        return data.merge(second.join());
+                    }
+                }
+                ExecutionData data = new ExecutionData();
+                new RecordParser(data).parse(channel.map(MapMode.READ_ONLY, start, end - start));
+                return data;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @returns the position after the first newline at or after pos, or
+         *          the end of the range if there is none
+         */
+        private long nextLine(long pos) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (pos < end) {
+                buffer.clear();
+                int length = channel.read(buffer, pos);
+                if (length <= 0) {
+                    break;
+                }
+                for (int i = 0; i < length; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return pos + i + 1;
+                    }
+                }
+                pos += length;
+            }
+            return end;
+        }
+    }
+
+    private BufferedInputStream decompress(BufferedInputStream in) {
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            if (magic != GZIPInputStream.GZIP_MAGIC) {
+                return in;
+            }
+            return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isBinary(BufferedInputStream in) {
+        byte[] header = new byte[BinaryFormat.MAGIC.length];
+        try {
+            in.mark(header.length);
+            int length = in.readNBytes(header, 0, header.length);
+            in.reset();
+            return BinaryFormat.isBinary(header, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ExecutionData analyzeBinary(InputStream source) {
+        ExecutionData data = new ExecutionData();
+        try {
+            BinaryDecoder decoder = new BinaryDecoder(source);
+            MethodCall call;
+            while ((call = decoder.next()) != null) {
+                data.addCall(call);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return data;
+    }
+
+    private ExecutionData analyzeText(InputStream source) {
         ExecutionData data = new ExecutionData();
-        BufferedReader stream = new BufferedReader(new InputStreamReader(source));
+        BufferedReader stream = new BufferedReader(
+                new InputStreamReader(source, StandardCharsets.UTF_8));
         stream.lines()
-                .filter(line -> line != null && !line.isBlank())
+                .filter(line -> line != null)
+                .map(Analyzer::stripUnwritten)
+                .filter(line -> !line.isBlank())
                 .map(MethodCall::new)
                 .filter(call -> call != null)
                 .forEach(data::addCall);
         return data;
     }
+
+    /**
+     * Removes the zero filled, unwritten tail of a memory mapped results
+     * file that was not closed properly. A later run may have appended to
+     * it.
+     */
+    private static String stripUnwritten(String line) {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) == '\0') {
+            start++;
+        }
+        return line.substring(start);
+    }
 }
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the results that agents stream over a local socket while the
+ * tests run. Each connection, one per test JVM, is analyzed on a thread of
+ * its own and merged into the execution data when the connection closes.
+ */
+public class Collector implements Closeable {
+
+    private static final int ACCEPT_TIMEOUT_MS = 100;
+
+    // How long finish waits for test JVMs to close their connections
+    static final Duration FINISH_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    // The thread that reads each connection
+    private final Map<Thread, Socket> connections = new LinkedHashMap<>();
+    private final List<Exception> errors = new ArrayList<>();
+    private final ExecutionData data = new ExecutionData();
+    private volatile boolean finishing = false;
+
+    /**
+     * Starts a collector listening on a free port of the loopback address
+     */
+    public Collector() throws IOException {
+        server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        acceptor = new Thread(this::accept, "matrixer-collector");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @returns the port the collector listens on
+     */
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @returns the address for the agent option of the same name
+     */
+    public String address() {
+        return server.getInetAddress().getHostAddress() + ":" + port();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread thread = new Thread(() -> collect(socket),
+                        "matrixer-collector-" + socket.getPort());
+                thread.setDaemon(true);
+                synchronized (connections) {
+                    connections.put(thread, socket);
+                }
+                thread.start();
+            } catch (SocketTimeoutException e) {
+                // Connections that are still queued are accepted before
+                // finishing
+                if (finishing) {
+                    return;
+                }
+            } catch (SocketException e) {
+                // The server was closed
+            } catch (IOException e) {
+                addError(e);
+            }
+        }
+    }
+
+    private void collect(Socket socket) {
+        try (InputStream in = socket.getInputStream()) {
+            ExecutionData results = new Analyzer().analyze(in);
+            synchronized (data) {
+                data.merge(results);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            addError(e);
+        }
+    }
+
+    private void addError(Exception e) {
+        synchronized (errors) {
+            errors.add(e);
+        }
+    }
+
+    /**
+     * Stops accepting connections and waits for the open connections to
+     * close, for at most {@link #FINISH_TIMEOUT}.
+     *
+     * @returns the merged execution data of all connections
+     * @throws IOException
+     *             if any of the connections failed or did not close
+     */
+    public ExecutionData finish() throws IOException, InterruptedException {
+        return finish(FINISH_TIMEOUT);
+    }
+
+    /**
+     * Stops accepting connections and waits for the open connections to
+     * close. Connections that are still open after the timeout, such as
+     * those of a test JVM that hangs, are closed and reported as failed.
+     *
+     * @returns the merged execution data of all connections
+     * @throws IOException
+     *             if any of the connections failed or did not close
+     */
+    public ExecutionData finish(Duration timeout) throws IOException, InterruptedException {
+        finishing = true;
+        acceptor.join();
+        close();
+        Map<Thread, Socket> open;
+        synchronized (connections) {
+            open = new LinkedHashMap<>(connections);
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        for (Map.Entry<Thread, Socket> connection : open.entrySet()) {
+            Thread thread = connection.getKey();
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, left);
+            }
+            if (thread.isAlive()) {
+                addError(new IOException(thread.getName() + " did not close within "
+                        + timeout.toMillis() + " ms"));
+                connection.getValue().close();
+                thread.join();
+            }
+        }
+        synchronized (errors) {
+            if (!errors.isEmpty()) {
+                IOException ex = new IOException("Collecting results: "
+                        + errors.get(0).getMessage());
+                errors.forEach(ex::addSuppressed);
+                throw ex;
+            }
+        }
+        synchronized (data) {
+            return data;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -49,14 +49,30 @@ public class ExecutedMethod implements Comparable<ExecutedMethod> {
      *            the call stack depth of the call
      */
     public void addCaller(String name, int depth) {
-        addDepthOfCall(depth);
+        addCaller(name, depth, depth);
+    }
+
+    /**
+     * Adds several calls to this method from the same caller
+     *
+     * @param name
+     *            the name of the caller
+     * @param minDepth
+     *            the lowest call stack depth of the calls
+     * @param maxDepth
+     *            the highest call stack depth of the calls
+     */
+    public void addCaller(String name, int minDepth, int maxDepth) {
+        addDepthOfCall(minDepth);
+        addDepthOfCall(maxDepth);
         Call call = calls.get(name);
         if (call == null) {
-            call = new Call(name, depth);
+            call = new Call(name, minDepth);
             calls.put(name, call);
         } else {
-            call.addCall(depth);
+            call.addCall(minDepth);
         }
+        call.addCall(maxDepth);
     }
 
     private void addDepthOfCall(int depth) {
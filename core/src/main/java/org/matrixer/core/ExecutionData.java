@@ -16,8 +16,10 @@
 package org.matrixer.core;
 
 import java.util.*;
+import java.util.stream.LongStream;
 
 import org.matrixer.core.runtime.MethodCall;
+import org.matrixer.core.util.Range;
 
 /**
  * Stores coverage information collected by executing the test suite
@@ -27,36 +29,87 @@ public class ExecutionData {
 
     private HashMap<String, ExecutedMethod> targetMethods = new HashMap<>();
     private Set<String> testCases = new HashSet<>();
-    private Collection<Integer> depths = new ArrayList<>();
+    private Depths depths = new Depths();
 
     /**
      * Adds a new method call
      *
      * If the caller and called method has already been added, the depth of
-     * the new call will be registered.
+     * the new call will be registered. An aggregate of several calls at the
+     * same depth registers the depth once per call, so the depth statistics
+     * are the same as if every call had been added. An aggregate with a
+     * range of depths only registers its lowest and highest depth.
      *
      * @param call
      *            The call to add
      */
     public void addCall(MethodCall call) {
-        testCases.add(call.callerName);
-        if (targetMethods.containsKey(call.methodName)) {
-            updateMethod(call.methodName, call.callerName, call.depth);
+        addCall(call.depth, call.methodName, call.callerName, call.maxDepth, call.count);
+    }
+
+    /**
+     * Adds a method call without creating a MethodCall for it
+     *
+     * @param depth
+     *            the lowest depth of the call
+     * @param methodName
+     *            the name of the called method
+     * @param callerName
+     *            the name of the caller
+     * @param maxDepth
+     *            the highest depth of the call
+     * @param count
+     *            the number of aggregated calls
+     */
+    public void addCall(int depth, String methodName, String callerName, int maxDepth,
+            long count) {
+        testCases.add(callerName);
+        if (targetMethods.containsKey(methodName)) {
+            updateMethod(methodName, callerName, depth, maxDepth);
+        } else {
+            addNewMethod(methodName, callerName, depth, maxDepth);
+        }
+        if (maxDepth == depth) {
+            depths.add(depth, count);
         } else {
-            addNewMethod(call.methodName, call.callerName, call.depth);
+            depths.add(depth, 1);
+            depths.add(maxDepth, 1);
         }
-        depths.add(call.depth);
     }
 
-    private void addNewMethod(String name, String caller, int depth) {
+    /**
+     * Adds the calls and test cases of other execution data, such as the
+     * data of another test JVM
+     *
+     * @param other
+     *            the data to add
+     * @returns this execution data
+     */
+    public ExecutionData merge(ExecutionData other) {
+        testCases.addAll(other.testCases);
+        depths.addAll(other.depths);
+        for (ExecutedMethod method : other.targetMethods.values()) {
+            for (ExecutedMethod.Call call : method.callers()) {
+                Range depth = call.depth();
+                if (targetMethods.containsKey(method.name())) {
+                    updateMethod(method.name(), call.caller(), depth.min(), depth.max());
+                } else {
+                    addNewMethod(method.name(), call.caller(), depth.min(), depth.max());
+                }
+            }
+        }
+        return this;
+    }
+
+    private void addNewMethod(String name, String caller, int minDepth, int maxDepth) {
         ExecutedMethod method = new ExecutedMethod(name);
-        method.addCaller(caller, depth);
+        method.addCaller(caller, minDepth, maxDepth);
         targetMethods.put(method.name(), method);
     }
 
-    private void updateMethod(String name, String caller, int depth) {
+    private void updateMethod(String name, String caller, int minDepth, int maxDepth) {
         ExecutedMethod method = targetMethods.get(name);
-        method.addCaller(caller, depth);
+        method.addCaller(caller, minDepth, maxDepth);
     }
 
     /**
@@ -89,8 +142,42 @@ public class ExecutionData {
         return testCases;
     }
 
+    /**
+     * @returns the call stack depth of every call, in ascending order
+     */
     public Collection<Integer> getCallStackDepths() {
         return depths;
     }
 
+    /**
+     * The number of calls at each depth, viewed as a collection with the
+     * depth of every call
+     */
+    private static class Depths extends AbstractCollection<Integer> {
+
+        private final SortedMap<Integer, Long> counts = new TreeMap<>();
+        private long size = 0;
+
+        void add(int depth, long count) {
+            counts.merge(depth, count, Long::sum);
+            size += count;
+        }
+
+        void addAll(Depths other) {
+            other.counts.forEach(this::add);
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            return counts.entrySet().stream()
+                    .flatMap(e -> LongStream.range(0, e.getValue()).mapToObj(i -> e.getKey()))
+                    .iterator();
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+
 }
@@ -33,6 +33,7 @@ import java.util.List;
  *    |-- outputDirectory
  *       |-- LOF_FILE_NAME
  *       |-- RESULTS_FILE_NAME
+ *       |-- RESULTS_SHARD_NAME (one per test JVM)
  * </pre>
  *
  *
@@ -47,12 +48,16 @@ import java.util.List;
  * outputDirectory
  * |-- LOF_FILE_NAME
  * |-- RESULTS_FILE_NAME
+ * |-- RESULTS_SHARD_NAME (one per test JVM)
  * </pre>
  */
 public abstract class Project {
 
     public final static String LOG_FILE_NAME = "matrixer-log.txt";
     public final static String RESULTS_FILE_NAME = "matrixer-results.txt";
+    public final static String RESULTS_SHARD_NAME = "matrixer-results-{pid}.txt";
+    // Matches the results file and the results files of the test JVMs
+    public final static String RESULTS_FILE_GLOB = "matrixer-results*.txt";
     public static final String OUTPUT_DIR_NAME = "matrixer-cov";
 
     protected final Properties properties;
@@ -70,6 +75,16 @@ public abstract class Project {
             .resolve(RESULTS_FILE_NAME);
     }
 
+    /**
+     * Returns the results file given to the agent. The agent replaces the
+     * placeholder with the process id, so that forked test JVMs do not
+     * write to the same file.
+     */
+    public Path resultsShardFile() {
+        return outputDirectory()
+            .resolve(RESULTS_SHARD_NAME);
+    }
+
     public Path directory() {
         return properties.targetDir();
     }
@@ -49,12 +49,20 @@ public class ProjectPreparer {
     }
 
     String agentString(Project project) {
-        Path destfile = project.resultsFile();
+        Path destfile = project.resultsShardFile();
         AgentOptions options = new AgentOptions();
         options.setDestFilename(destfile.toString());
         options.setDepthLimit(project.properties.getDepthLimit());
         options.setTargetPackage(project.targetPackage());
         options.setTestPackage(project.testPackage());
+        String address = project.properties.collectorAddress();
+        if (address != null) {
+            // Results the collector could not receive are still written
+            // to the destfile
+            options.setOutput(AgentOptions.OUTPUT_SOCKET);
+            options.setAddress(address);
+            options.setFormat(AgentOptions.FORMAT_BINARY);
+        }
         if (project.properties.getDebug()) {
             options.setDebug(true);
         }
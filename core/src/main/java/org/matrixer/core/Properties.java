@@ -59,6 +59,12 @@ public class Properties {
 
     final static String DEBUG_FLAG = "--debug";
 
+    /**
+     * Used to stream the results to the application over a local socket
+     * instead of writing them to results files.
+     */
+    final static String COLLECT_FLAG = "--collect";
+
     /**
      * The default output directory if none is provided is a subdirectory of
      * the target directory with this name.
@@ -73,6 +79,8 @@ public class Properties {
     private String testPkg;
     private int depthLimit = 0;
     private boolean debug = false;
+    private boolean shouldCollect = false;
+    private String collectorAddress;
     private String failureReason = "Properties not parsed";
     private boolean shouldInstrument = false;
     private boolean shouldRun = false;
@@ -130,6 +138,9 @@ public class Properties {
             case DEBUG_FLAG:
                 setDebug(arg);
                 break;
+            case COLLECT_FLAG:
+                shouldCollect = parseBool(arg);
+                break;
             case DEPTH_LIMIT_FLAG:
                 setDepthLimit(arg);
                 break;
@@ -350,6 +361,31 @@ public class Properties {
         depthLimit = limit;
     }
 
+    public void setShouldCollect(boolean shouldCollect) {
+        this.shouldCollect = shouldCollect;
+    }
+
+    /**
+     * @returns true if the results should be streamed to a collector
+     */
+    public boolean shouldCollect() {
+        return shouldCollect;
+    }
+
+    /**
+     * Sets the address of the collector the agents stream results to
+     */
+    public void setCollectorAddress(String address) {
+        collectorAddress = address;
+    }
+
+    /**
+     * @returns the address of the collector, or null if there is none
+     */
+    public String collectorAddress() {
+        return collectorAddress;
+    }
+
     public void setShouldInstrument(boolean shouldInstrument) {
         this.shouldInstrument = shouldInstrument;
     }
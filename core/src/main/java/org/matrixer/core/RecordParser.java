@@ -0,0 +1,231 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.matrixer.core.runtime.MethodCall;
+
+/**
+ * Parses text results directly from a byte buffer, such as a memory mapped
+ * results file, into execution data. The depths are parsed in place and
+ * the names are looked up in an intern table keyed by their bytes, so a
+ * String is only created the first time a name is seen.
+ *
+ * @see MethodCall for the format of the lines
+ */
+class RecordParser {
+
+    private static final byte SEPARATOR = (byte) MethodCall.sep.charAt(0);
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ExecutionData data;
+    private final int[] fields = new int[4];
+
+    private byte[][] keys = new byte[INITIAL_CAPACITY][];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @param data
+     *            the execution data to add the parsed calls to
+     */
+    RecordParser(ExecutionData data) {
+        this.data = data;
+    }
+
+    /**
+     * Parses the lines from the position to the limit of the buffer. The
+     * position of the buffer is not changed.
+     *
+     * @throws IllegalArgumentException
+     *             if a line is not a method call
+     */
+    void parse(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        while (pos < limit) {
+            int end = pos;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            parseLine(buffer, pos, end);
+            pos = end + 1;
+        }
+    }
+
+    private void parseLine(ByteBuffer buffer, int start, int end) {
+        // Skip the zero filled, unwritten part of a memory mapped file
+        while (start < end && buffer.get(start) == 0) {
+            start++;
+        }
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (isBlank(buffer, start, end)) {
+            return;
+        }
+        int count = split(buffer, start, end);
+        if (count != 3 && count != 5) {
+            throw badLine(buffer, start, end);
+        }
+        int depth = parseInt(buffer, start, fields[0] - 1, start, end);
+        String methodName = intern(buffer, fields[0], fields[1] - 1);
+        String callerName = intern(buffer, fields[1], count == 3 ? end : fields[2] - 1);
+        int maxDepth = depth;
+        long calls = 1;
+        if (count == 5) {
+            maxDepth = parseInt(buffer, fields[2], fields[3] - 1, start, end);
+            calls = parseLong(buffer, fields[3], end, start, end);
+        }
+        data.addCall(depth, methodName, callerName, maxDepth, calls);
+    }
+
+    private boolean isBlank(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the start of each field after the first one
+     *
+     * @returns the number of fields, or -1 if there are too many
+     */
+    private int split(ByteBuffer buffer, int start, int end) {
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == SEPARATOR) {
+                if (count > fields.length) {
+                    return -1;
+                }
+                fields[count - 1] = i + 1;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int parseInt(ByteBuffer buffer, int from, int to, int start, int end) {
+        long value = parseLong(buffer, from, to, start, end);
+        if (value != (int) value) {
+            throw badLine(buffer, start, end);
+        }
+        return (int) value;
+    }
+
+    private long parseLong(ByteBuffer buffer, int from, int to, int start, int end) {
+        int i = from;
+        boolean negative = i < to && buffer.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        // Longer numbers could overflow
+        if (i == to || to - i > 18) {
+            throw badLine(buffer, start, end);
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw badLine(buffer, start, end);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @returns the name of the bytes between from and to, the same String
+     *          every time the same bytes are seen
+     */
+    String intern(ByteBuffer buffer, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && matches(keys[slot], buffer, from, to)) {
+                return names[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] key = bytes(buffer, from, to);
+        String name = new String(key, StandardCharsets.UTF_8);
+        keys[slot] = key;
+        names[slot] = name;
+        hashes[slot] = hash;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return name;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buffer, int from, int to) {
+        if (key.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buffer.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        keys = new byte[oldKeys.length * 2][];
+        names = new String[keys.length];
+        hashes = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                names[slot] = oldNames[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private IllegalArgumentException badLine(ByteBuffer buffer, int start, int end) {
+        String line = new String(bytes(buffer, start, end), StandardCharsets.UTF_8);
+        return new IllegalArgumentException("Bad method call line format: " + line);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.duplicate().position(from).get(bytes);
+        return bytes;
+    }
+}
@@ -23,13 +23,76 @@ public class AgentOptions {
     public static final String DEFAULT_DESTFILENAME = "matrixer-results.txt";
     public static final String DESTFILENAME = "destfile";
 
+    // Replaced in the destfile by the process id of the JVM
+    public static final String PID_PLACEHOLDER = "{pid}";
+
+    // Replaced in the destfile by the number of the test fork
+    public static final String FORK_PLACEHOLDER = "{fork}";
+
     public static final String TARGET_PKG = "pkg";
     public static final String TEST_PKG = "testPkg";
     public static final String DEPTH_LIMIT = "depth";
     public static final String DEBUG = "debug";
+    public static final String ASYNC = "async";
+    public static final String FLUSH_INTERVAL = "flushInterval";
+    public static final String FORMAT = "format";
+    public static final String COMPRESSION = "compression";
+    public static final String OUTPUT = "output";
+    public static final String SAMPLE_LIMIT = "sampleLimit";
+    public static final String SAMPLE_RATE = "sampleRate";
+    public static final String FILTER = "filter";
+    public static final String MIN_SIZE = "minSize";
+    public static final String INCLUDES = "includes";
+    public static final String EXCLUDES = "excludes";
+    public static final String CACHE = "cache";
+    public static final String FRAMES = "frames";
+    public static final String PROPAGATE = "propagate";
+    public static final String FIXTURES = "fixtures";
+    public static final String MODE = "mode";
+    public static final String SWITCHABLE = "switchable";
+    public static final String RETRANSFORM = "retransform";
+    public static final String DETACH = "detach";
+    public static final String ADDRESS = "address";
+
+    public static final String FORMAT_TEXT = "text";
+    public static final String FORMAT_BINARY = "binary";
+
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_GZIP = "gzip";
+
+    public static final String OUTPUT_FILE = "file";
+    public static final String OUTPUT_MMAP = "mmap";
+    public static final String OUTPUT_SOCKET = "socket";
+
+    public static final String DEFAULT_ADDRESS = "localhost:6300";
+
+    public static final String FRAMES_PRESERVE = "preserve";
+    public static final String FRAMES_COMPUTE = "compute";
+
+    public static final String MODE_DEPTH = "depth";
+    public static final String MODE_ENTRY = "entry";
+    public static final String MODE_PROBES = "probes";
+
+    public static final String FILTER_BRIDGE = "bridge";
+    public static final String FILTER_SYNTHETIC = "synthetic";
+    public static final String FILTER_ACCESSORS = "accessors";
+    public static final String FILTER_LAMBDAS = "lambdas";
+
+    private static final Collection<String> VALID_FILTERS = Arrays.asList(
+        FILTER_BRIDGE, FILTER_SYNTHETIC, FILTER_ACCESSORS, FILTER_LAMBDAS
+    );
+
+    // Separates the values of options that take a list
+    public static final String LIST_SEPARATOR = ":";
+
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
 
     private static final Collection<String> VALID_OPTIONS = Arrays.asList(
-        DESTFILENAME, TARGET_PKG, TEST_PKG, DEPTH_LIMIT, DEBUG
+        DESTFILENAME, TARGET_PKG, TEST_PKG, DEPTH_LIMIT, DEBUG, ASYNC, FLUSH_INTERVAL,
+        FORMAT, COMPRESSION, OUTPUT, SAMPLE_LIMIT, SAMPLE_RATE,
+        FILTER, MIN_SIZE, INCLUDES, EXCLUDES,
+        CACHE, FRAMES, PROPAGATE, FIXTURES, MODE, SWITCHABLE, RETRANSFORM, DETACH,
+        ADDRESS
     );
 
     private Map<String, String> options = new HashMap<>();
@@ -54,6 +117,59 @@ public class AgentOptions {
             String value = entry.substring(pos + 1);
             setOption(key, value);
         }
+        String format = getFormat();
+        if (!format.equals(FORMAT_TEXT) && !format.equals(FORMAT_BINARY)) {
+            throw new IllegalArgumentException("Not a valid format " + format);
+        }
+        String compression = getCompression();
+        if (!compression.equals(COMPRESSION_NONE) && !compression.equals(COMPRESSION_GZIP)) {
+            throw new IllegalArgumentException("Not a valid compression " + compression);
+        }
+        String output = getOutput();
+        if (output.equals(OUTPUT_MMAP)) {
+            if (!format.equals(FORMAT_TEXT) || !compression.equals(COMPRESSION_NONE)) {
+                throw new IllegalArgumentException(
+                        "Memory mapped output only supports uncompressed text");
+            }
+            if (getAsync()) {
+                // Threads already write to the mapped file without waiting
+                throw new IllegalArgumentException(
+                        "Memory mapped output cannot be asynchronous");
+            }
+        } else if (output.equals(OUTPUT_SOCKET)) {
+            getPort();
+        } else if (!output.equals(OUTPUT_FILE)) {
+            throw new IllegalArgumentException("Not a valid output " + output);
+        }
+        String frames = getFrames();
+        if (!frames.equals(FRAMES_PRESERVE) && !frames.equals(FRAMES_COMPUTE)) {
+            throw new IllegalArgumentException("Not a valid frames mode " + frames);
+        }
+        String mode = getMode();
+        if (!mode.equals(MODE_DEPTH) && !mode.equals(MODE_ENTRY) && !mode.equals(MODE_PROBES)) {
+            throw new IllegalArgumentException("Not a valid mode " + mode);
+        }
+        if (getRetransform() && mode.equals(MODE_PROBES)) {
+            // Probe arrays add fields, which retransformation does not allow
+            throw new IllegalArgumentException("Loaded classes cannot be retransformed in "
+                    + mode + " mode");
+        }
+        if (getSwitchable() && mode.equals(MODE_PROBES)) {
+            // Probe arrays are not linked with invokedynamic
+            throw new IllegalArgumentException("Probes cannot be switchable in " + mode
+                    + " mode");
+        }
+        if (getSampleLimit() < 0) {
+            throw new IllegalArgumentException("Not a valid sample limit " + getSampleLimit());
+        }
+        if (getSampleRate() < 1) {
+            throw new IllegalArgumentException("Not a valid sample rate " + getSampleRate());
+        }
+        for (var filter : getFilters()) {
+            if (!VALID_FILTERS.contains(filter)) {
+                throw new IllegalArgumentException("Not a valid filter " + filter);
+            }
+        }
     }
 
     public String getDestFilename() {
@@ -64,6 +180,23 @@ public class AgentOptions {
         options.put(DESTFILENAME, destFilename);
     }
 
+    /**
+     * Returns the destfile with its placeholders replaced, so that JVMs
+     * that run at the same time can write to files of their own
+     *
+     * @param pid
+     *            the process id of the JVM
+     * @param fork
+     *            the number of the test fork, or null if it is not known.
+     *            The process id is used instead.
+     */
+    public String getDestFilename(long pid, String fork) {
+        String pidString = Long.toString(pid);
+        return getDestFilename()
+                .replace(PID_PLACEHOLDER, pidString)
+                .replace(FORK_PLACEHOLDER, fork != null ? fork : pidString);
+    }
+
     public void setTargetPackage(String pkg) {
         options.put(TARGET_PKG, pkg);
     }
@@ -96,6 +229,262 @@ public class AgentOptions {
         setOption(DEPTH_LIMIT, depth);
     }
 
+    public boolean getAsync() {
+        return getOption(ASYNC, false);
+    }
+
+    public void setAsync(boolean async) {
+        setOption(ASYNC, async);
+    }
+
+    /**
+     * Returns the maximum time in milliseconds the asynchronous writer
+     * holds on to results before writing them
+     */
+    public int getFlushInterval() {
+        return getOption(FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    public void setFlushInterval(int millis) {
+        setOption(FLUSH_INTERVAL, millis);
+    }
+
+    /**
+     * Returns the format of the results file, either text or binary
+     */
+    public String getFormat() {
+        return getOption(FORMAT, FORMAT_TEXT);
+    }
+
+    public void setFormat(String format) {
+        setOption(FORMAT, format);
+    }
+
+    /**
+     * Returns the compression of the results file, either none or gzip. A
+     * gzip file is only complete if the JVM shuts down cleanly. If the JVM
+     * is killed, the file cannot be analyzed, even after later runs append
+     * to it.
+     */
+    public String getCompression() {
+        return getOption(COMPRESSION, COMPRESSION_NONE);
+    }
+
+    public void setCompression(String compression) {
+        setOption(COMPRESSION, compression);
+    }
+
+    /**
+     * Returns how the results file is written, either through a stream
+     * (file) or memory mapped (mmap), or if the results are streamed to a
+     * collector (socket) instead
+     */
+    public String getOutput() {
+        return getOption(OUTPUT, OUTPUT_FILE);
+    }
+
+    public void setOutput(String output) {
+        setOption(OUTPUT, output);
+    }
+
+    /**
+     * Returns the host and port, on the form host:port, of the collector
+     * that socket output is streamed to
+     */
+    public String getAddress() {
+        return getOption(ADDRESS, DEFAULT_ADDRESS);
+    }
+
+    public void setAddress(String address) {
+        setOption(ADDRESS, address);
+    }
+
+    public String getHost() {
+        String address = getAddress();
+        int pos = address.lastIndexOf(':');
+        return pos < 0 ? address : address.substring(0, pos);
+    }
+
+    public int getPort() {
+        String address = getAddress();
+        try {
+            return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a valid address " + address);
+        }
+    }
+
+    /**
+     * Returns how many calls of each method in a test case are recorded, or
+     * 0 for all calls
+     */
+    public int getSampleLimit() {
+        return getOption(SAMPLE_LIMIT, 0);
+    }
+
+    public void setSampleLimit(int limit) {
+        setOption(SAMPLE_LIMIT, limit);
+    }
+
+    /**
+     * Returns K where one in K calls of each method in a test case is
+     * recorded
+     */
+    public int getSampleRate() {
+        return getOption(SAMPLE_RATE, 1);
+    }
+
+    public void setSampleRate(int rate) {
+        setOption(SAMPLE_RATE, rate);
+    }
+
+    /**
+     * Returns the kinds of methods that are not instrumented, or lambdas
+     * if lambda bodies are recorded as their enclosing method
+     */
+    public Set<String> getFilters() {
+        return new HashSet<>(getList(FILTER));
+    }
+
+    public void setFilters(Collection<String> filters) {
+        setOption(FILTER, String.join(LIST_SEPARATOR, filters));
+    }
+
+    /**
+     * Returns the number of instructions a method needs to be instrumented
+     */
+    public int getMinSize() {
+        return getOption(MIN_SIZE, 0);
+    }
+
+    public void setMinSize(int size) {
+        setOption(MIN_SIZE, size);
+    }
+
+    /**
+     * Returns the patterns of the classes to instrument. The target package
+     * is used if there are none.
+     */
+    public List<String> getIncludes() {
+        return getList(INCLUDES);
+    }
+
+    public void setIncludes(Collection<String> patterns) {
+        setOption(INCLUDES, String.join(LIST_SEPARATOR, patterns));
+    }
+
+    /**
+     * Returns the patterns of classes that are not instrumented
+     */
+    public List<String> getExcludes() {
+        return getList(EXCLUDES);
+    }
+
+    public void setExcludes(Collection<String> patterns) {
+        setOption(EXCLUDES, String.join(LIST_SEPARATOR, patterns));
+    }
+
+    /**
+     * Returns true if instrumented classes are cached next to the results
+     * file
+     */
+    public boolean getCache() {
+        return getOption(CACHE, false);
+    }
+
+    public void setCache(boolean cache) {
+        setOption(CACHE, cache);
+    }
+
+    /**
+     * Returns whether instrumentation keeps the original stack map frames
+     * (preserve) or computes all frames (compute)
+     */
+    public String getFrames() {
+        return getOption(FRAMES, FRAMES_PRESERVE);
+    }
+
+    public void setFrames(String frames) {
+        setOption(FRAMES, frames);
+    }
+
+    /**
+     * Returns whether tasks submitted to executors and fork join pools
+     * run in the test case that submitted them. Off by default, since it
+     * retransforms classes of java.util.concurrent.
+     */
+    public boolean getPropagate() {
+        return getOption(PROPAGATE, false);
+    }
+
+    public void setPropagate(boolean propagate) {
+        setOption(PROPAGATE, propagate);
+    }
+
+    /**
+     * Returns whether calls made by the lifecycle methods of a test class
+     * are recorded in a fixture test case of the class
+     */
+    public boolean getFixtures() {
+        return getOption(FIXTURES, false);
+    }
+
+    public void setFixtures(boolean fixtures) {
+        setOption(FIXTURES, fixtures);
+    }
+
+    /**
+     * Returns how calls are recorded. Depth mode records the call stack
+     * depth of each call. Entry mode only records the entry of each call,
+     * without a depth, so methods are not wrapped to record their exits.
+     * Probes mode only records which methods each test case called, by
+     * setting a flag in a probe array of the class. The arrays are shared,
+     * so probes mode needs test cases that run one at a time.
+     */
+    public String getMode() {
+        return getOption(MODE, MODE_DEPTH);
+    }
+
+    public void setMode(String mode) {
+        setOption(MODE, mode);
+    }
+
+    /**
+     * Returns whether the probes of the depth and entry modes are linked
+     * with invokedynamic, so that they do nothing while no test case runs
+     */
+    public boolean getSwitchable() {
+        return getOption(SWITCHABLE, false);
+    }
+
+    public void setSwitchable(boolean switchable) {
+        setOption(SWITCHABLE, switchable);
+    }
+
+    /**
+     * Returns whether an agent that is attached to a running JVM also
+     * instruments the classes that were loaded before it was attached
+     */
+    public boolean getRetransform() {
+        return getOption(RETRANSFORM, false);
+    }
+
+    public void setRetransform(boolean retransform) {
+        setOption(RETRANSFORM, retransform);
+    }
+
+    /**
+     * Returns whether the agent is attached to remove the probes of the
+     * agent that is already running, instead of starting a new agent
+     */
+    public boolean getDetach() {
+        return getOption(DETACH, false);
+    }
+
+    public void setDetach(boolean detach) {
+        setOption(DETACH, detach);
+    }
+
     /*
      * General functions
      */
@@ -136,6 +525,14 @@ public class AgentOptions {
         return Integer.parseInt(value);
     }
 
+    public List<String> getList(String key) {
+        String value = options.get(key);
+        if (value == null || value.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.asList(value.split(LIST_SEPARATOR));
+    }
+
     public String getJVMArgument(Path agentJar) {
         return String.format("-javaagent:%s=%s", agentJar, this);
     }
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core.runtime;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.matrixer.core.runtime.BinaryFormat.*;
+
+/**
+ * Reads method calls in the binary results format
+ */
+public class BinaryDecoder {
+
+    private final InputStream in;
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * Creates a new decoder. The stream should be buffered.
+     *
+     * @param in
+     *            A stream starting with the magic bytes
+     * @throws IOException
+     */
+    public BinaryDecoder(InputStream in) throws IOException {
+        this.in = in;
+        readMagic();
+    }
+
+    /**
+     * Reads the next call
+     *
+     * @return the next call, or null if the end of the stream is reached
+     * @throws IOException
+     */
+    public MethodCall next() throws IOException {
+        while (true) {
+            int tag = in.read();
+            switch (tag) {
+                case -1:
+                    return null;
+                case CALL:
+                    return readCall();
+                case STRING:
+                    readString();
+                    break;
+                default:
+                    if (tag != MAGIC[0]) {
+                        throw new IOException("Bad record type: " + tag);
+                    }
+                    // A new section with its own string table
+                    readMagicTail();
+                    strings.clear();
+            }
+        }
+    }
+
+    private MethodCall readCall() throws IOException {
+        String method = string(readVarInt());
+        String caller = string(readVarInt());
+        int depth = readVarInt();
+        int maxDepth = depth + readVarInt();
+        long count = readVarLong();
+        return new MethodCall(depth, method, caller, maxDepth, count);
+    }
+
+    private void readString() throws IOException {
+        int length = readVarInt();
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Truncated string record");
+        }
+        strings.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private String string(int id) throws IOException {
+        if (id >= strings.size()) {
+            throw new IOException("Unknown string id: " + id);
+        }
+        return strings.get(id);
+    }
+
+    private void readMagic() throws IOException {
+        if (in.read() != MAGIC[0]) {
+            throw new IOException("Not a binary results stream");
+        }
+        readMagicTail();
+    }
+
+    private void readMagicTail() throws IOException {
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (in.read() != MAGIC[i]) {
+                throw new IOException("Not a binary results stream");
+            }
+        }
+    }
+
+    private int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Value out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated call record");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
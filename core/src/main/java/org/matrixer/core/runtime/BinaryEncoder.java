@@ -0,0 +1,82 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.matrixer.core.runtime.BinaryFormat.*;
+
+/**
+ * Writes method calls in the binary results format. Names are written to
+ * the string table the first time they are used. Not thread safe.
+ */
+public class BinaryEncoder {
+
+    private final OutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    /**
+     * Creates a new encoder and starts a new section in the stream
+     *
+     * @param out
+     *            The stream to write to
+     * @throws IOException
+     */
+    public BinaryEncoder(OutputStream out) throws IOException {
+        this.out = out;
+        out.write(MAGIC);
+    }
+
+    public void write(MethodCall call) throws IOException {
+        int method = stringId(call.methodName);
+        int caller = stringId(call.callerName);
+        out.write(CALL);
+        writeVarLong(method);
+        writeVarLong(caller);
+        writeVarLong(call.depth);
+        writeVarLong(call.maxDepth - call.depth);
+        writeVarLong(call.count);
+    }
+
+    private int stringId(String s) throws IOException {
+        Integer id = strings.get(s);
+        if (id != null) {
+            return id;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(STRING);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+        id = strings.size();
+        strings.put(s, id);
+        return id;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
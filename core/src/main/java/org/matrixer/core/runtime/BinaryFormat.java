@@ -0,0 +1,60 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core.runtime;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants of the binary results format
+ *
+ * A binary results file is a sequence of sections, each starting with the
+ * magic bytes. A section holds string records, which add a name to the
+ * string table of the section, and call records that refer to names by
+ * their index in the string table. All integers are unsigned varints.
+ *
+ * <pre>
+ * section := MAGIC record*
+ * record  := STRING length utf8-bytes
+ *          | CALL methodId callerId depth (maxDepth - depth) count
+ * </pre>
+ *
+ * A new section is started each time an agent starts writing to the file.
+ */
+public final class BinaryFormat {
+
+    public static final byte[] MAGIC = "MXB1".getBytes(StandardCharsets.US_ASCII);
+
+    public static final int STRING = 1;
+    public static final int CALL = 2;
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * Returns true if the bytes start with the magic bytes
+     */
+    public static boolean isBinary(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.matrixer.core.runtime;
 
+import java.util.function.Supplier;
+
  public interface Logger {
 
     public void log(String msg);
@@ -23,4 +25,36 @@ package org.matrixer.core.runtime;
 
     public void logException(Throwable e);
 
+    /**
+     * Returns true if messages passed to log are written
+     */
+    public default boolean isLogEnabled() {
+        return true;
+    }
+
+    /**
+     * Returns true if messages passed to logError are written
+     */
+    public default boolean isErrorEnabled() {
+        return true;
+    }
+
+    /**
+     * Logs a message that is only built if logging is enabled
+     */
+    public default void log(Supplier<String> msg) {
+        if (isLogEnabled()) {
+            log(msg.get());
+        }
+    }
+
+    /**
+     * Logs an error message that is only built if error logging is enabled
+     */
+    public default void logError(Supplier<String> msg) {
+        if (isErrorEnabled()) {
+            logError(msg.get());
+        }
+    }
+
  }
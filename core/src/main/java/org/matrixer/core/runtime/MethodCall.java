@@ -17,16 +17,46 @@ package org.matrixer.core.runtime;
 
 /**
  * Stores information about a method call
+ *
+ * A method call may also aggregate several calls from the same caller, in
+ * which case depth and maxDepth is the range of their call stack depths.
+ * A single call is written as
+ *
+ * <pre>
+ * depth#methodName#callerName
+ * </pre>
+ *
+ * and an aggregate as
+ *
+ * <pre>
+ * depth#methodName#callerName#maxDepth#count
+ * </pre>
  */
 public class MethodCall {
 
     public static final String sep = "#";
 
     /**
-     * The call stack depth of the call
+     * The depth of calls recorded without a call stack
+     */
+    public static final int NO_DEPTH = 0;
+
+    /**
+     * The call stack depth of the call, or the lowest depth if this is an
+     * aggregate
      */
     public final int depth;
 
+    /**
+     * The highest call stack depth of the aggregated calls
+     */
+    public final int maxDepth;
+
+    /**
+     * The number of aggregated calls
+     */
+    public final long count;
+
     /**
      * The name of the called method
      */
@@ -39,13 +69,20 @@ public class MethodCall {
 
     public MethodCall(String line) {
         String[] parts = line.split(sep);
-        if (parts.length != 3) {
+        if (parts.length != 3 && parts.length != 5) {
             throw new IllegalArgumentException("Bad method call line format: " + line);
         }
         try {
             depth = Integer.parseInt(parts[0]);
             methodName = parts[1];
             callerName = parts[2];
+            if (parts.length == 5) {
+                maxDepth = Integer.parseInt(parts[3]);
+                count = Long.parseLong(parts[4]);
+            } else {
+                maxDepth = depth;
+                count = 1;
+            }
         } catch (Exception e) {
             throw new IllegalArgumentException("Bad method call line format: " + line);
         }
@@ -62,13 +99,37 @@ public class MethodCall {
      *            the name of the caller
      */
     public MethodCall(int depth, String methodName, String callerName) {
+        this(depth, methodName, callerName, depth, 1);
+    }
+
+    /**
+     * Creates a new MethodCall that aggregates several calls
+     *
+     * @param depth
+     *            the lowest depth of the calls
+     * @param methodName
+     *            the name of the called method
+     * @param callerName
+     *            the name of the caller
+     * @param maxDepth
+     *            the highest depth of the calls
+     * @param count
+     *            the number of calls
+     */
+    public MethodCall(int depth, String methodName, String callerName, int maxDepth,
+            long count) {
         this.depth = depth;
         this.methodName = methodName;
         this.callerName = callerName;
+        this.maxDepth = maxDepth;
+        this.count = count;
     }
 
     public String asLine() {
-        return depth + sep + methodName + sep + callerName;
+        if (count == 1) {
+            return depth + sep + methodName + sep + callerName;
+        }
+        return depth + sep + methodName + sep + callerName + sep + maxDepth + sep + count;
     }
 
     @Override
@@ -77,6 +138,8 @@ public class MethodCall {
         int result = 1;
         result = prime * result + ((callerName == null) ? 0 : callerName.hashCode());
         result = prime * result + depth;
+        result = prime * result + maxDepth;
+        result = prime * result + Long.hashCode(count);
         result = prime * result + ((methodName == null) ? 0 : methodName.hashCode());
         return result;
     }
@@ -97,6 +160,10 @@ public class MethodCall {
             return false;
         if (depth != other.depth)
             return false;
+        if (maxDepth != other.maxDepth)
+            return false;
+        if (count != other.count)
+            return false;
         if (methodName == null) {
             if (other.methodName != null)
                 return false;
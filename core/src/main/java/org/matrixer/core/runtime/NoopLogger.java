@@ -32,4 +32,14 @@ package org.matrixer.core.runtime;
         // No-op
     }
 
+    @Override
+    public boolean isLogEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return false;
+    }
+
  }
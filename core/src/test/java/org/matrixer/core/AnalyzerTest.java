@@ -18,11 +18,15 @@ package org.matrixer.core;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.matrixer.core.runtime.MethodCall;
 import org.matrixer.core.testsupport.TestUtils;
 import org.matrixer.core.util.Range;
@@ -50,6 +54,112 @@ class AnalyzerTest {
         assertEquals(6, result.getAllTestCases().size());
     }
 
+    @Test
+    void analyzesBinaryResults() {
+        MethodCall[] calls = new MethodCall[] {
+                new MethodCall(3, "Class1", "TestCase1"),
+                new MethodCall(3, "Class2", "TestCase1", 5, 10),
+                new MethodCall(3, "Class2", "TestCase2"),
+                new MethodCall(1, "Class3", "TestCase3"),
+        };
+        InputStream source = TestUtils.asBinaryInputStream(calls);
+
+        Analyzer analyzer = new Analyzer();
+        ExecutionData result = analyzer.analyze(source);
+
+        assertEquals(3, result.getAllTargetMethods().size());
+        assertEquals(3, result.getAllTestCases().size());
+        Range depth = result.getTargetMethod("Class2").depthOfCall("TestCase1");
+        assertEquals(3, depth.min());
+        assertEquals(5, depth.max());
+    }
+
+    @Test
+    void analyzesCompressedResults() throws IOException {
+        MethodCall[] calls = new MethodCall[] {
+                new MethodCall(3, "Class1", "TestCase1"),
+                new MethodCall(3, "Class2", "TestCase2"),
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Two gzip members, as written by two runs appending to the same file
+        for (var call : calls) {
+            try (var gzip = new GZIPOutputStream(out)) {
+                gzip.write((call.asLine() + "\n").getBytes());
+            }
+        }
+        InputStream source = new ByteArrayInputStream(out.toByteArray());
+
+        Analyzer analyzer = new Analyzer();
+        ExecutionData result = analyzer.analyze(source);
+
+        assertEquals(2, result.getAllTargetMethods().size());
+        assertEquals(2, result.getAllTestCases().size());
+    }
+
+    @Test
+    void mergesResultsFilesInDirectory(@TempDir Path dir) throws IOException {
+        MethodCall[] first = new MethodCall[] {
+                new MethodCall(3, "Class1", "TestCase1"),
+                new MethodCall(2, "Class2", "TestCase1"),
+        };
+        MethodCall[] second = new MethodCall[] {
+                new MethodCall(5, "Class1", "TestCase1"),
+                new MethodCall(1, "Class3", "TestCase2"),
+        };
+        Files.writeString(dir.resolve("results-1.txt"), TestUtils.asRawString(first));
+        Files.write(dir.resolve("results-2.txt"),
+                TestUtils.asBinaryInputStream(second).readAllBytes());
+        Files.writeString(dir.resolve("other.txt"), "not results");
+
+        Analyzer analyzer = new Analyzer();
+        ExecutionData result = analyzer.analyze(dir, "results*.txt");
+
+        assertEquals(3, result.getAllTargetMethods().size());
+        assertEquals(2, result.getAllTestCases().size());
+        Range depth = result.getTargetMethod("Class1").depthOfCall("TestCase1");
+        assertEquals(3, depth.min());
+        assertEquals(5, depth.max());
+        assertEquals(4, result.getCallStackDepths().size());
+    }
+
+    @Test
+    void parsesLargeTextFileInChunks(@TempDir Path dir) throws IOException {
+        List<MethodCall> calls = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            calls.add(new MethodCall(i % 7 + 1, "Class" + i % 13, "TestCase" + i % 11));
+        }
+        Path file = dir.resolve("results.txt");
+        Files.writeString(file, TestUtils.asRawString(calls.toArray(new MethodCall[0])));
+
+        ExecutionData expected = new Analyzer().analyze(Files.newInputStream(file));
+        ExecutionData result = new Analyzer(100).analyze(file);
+
+        assertEquals(13, result.getAllTargetMethods().size());
+        assertEquals(11, result.getAllTestCases().size());
+        assertEquals(1000, result.getCallStackDepths().size());
+        for (ExecutedMethod method : expected.getAllTargetMethods()) {
+            for (String testCase : expected.getAllTestCases()) {
+                Range depth = method.depthOfCall(testCase);
+                Range actual = result.getTargetMethod(method.name()).depthOfCall(testCase);
+                assertEquals(depth.min(), actual.min());
+                assertEquals(depth.max(), actual.max());
+            }
+        }
+    }
+
+    @Test
+    void skipsUnwrittenPartOfMappedFile() {
+        String unwritten = "\0\0\0\0";
+        String data = "1#Class1#TestCase1\n" + unwritten + "2#Class2#TestCase2\n" + unwritten;
+        InputStream source = TestUtils.asInputStream(data);
+
+        Analyzer analyzer = new Analyzer();
+        ExecutionData result = analyzer.analyze(source);
+
+        assertEquals(2, result.getAllTargetMethods().size());
+        assertEquals(2, result.getAllTestCases().size());
+    }
+
     @Test
     void deduplicatesRepeatingTargetMethods() {
         String targetMethodName = "package.Class.AppMethod()";
@@ -119,6 +229,27 @@ class AnalyzerTest {
         assertEquals(10, depthRange.max());
     }
 
+    @Test
+    void collectsDepthRangeOfAggregatedCalls() {
+        String targetMethodName = "package.Class.AppMethod()";
+        String testCaseName = "package.TestClass:TestMethod";
+        MethodCall[] calls = new MethodCall[] {
+                new MethodCall(2, targetMethodName, testCaseName, 8, 100),
+                new MethodCall(4, targetMethodName, "package.TestClass:OtherMethod"),
+        };
+        InputStream source = TestUtils.asInputStream(calls);
+
+        Analyzer analyzer = new Analyzer();
+        ExecutionData result = analyzer.analyze(source);
+
+        ExecutedMethod targetMethod = result.getTargetMethod(targetMethodName);
+        Range depthRange = targetMethod.depthOfCall(testCaseName);
+        assertEquals(2, depthRange.min());
+        assertEquals(8, depthRange.max());
+        assertEquals(2, targetMethod.depthOfCalls().min());
+        assertEquals(8, targetMethod.depthOfCalls().max());
+    }
+
     @Test
     void mapsTargetMethodToTestCase() {
         MethodCall[] calls = new MethodCall[] {
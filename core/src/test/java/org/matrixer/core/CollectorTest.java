@@ -0,0 +1,77 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.matrixer.core.runtime.MethodCall;
+import org.matrixer.core.testsupport.TestUtils;
+import org.matrixer.core.util.Range;
+
+class CollectorTest {
+
+    @Test
+    void mergesResultsOfAllConnections() throws Exception {
+        MethodCall[] text = {
+                new MethodCall(3, "Class1", "TestCase1"),
+                new MethodCall(2, "Class2", "TestCase1"),
+        };
+        MethodCall[] binary = {
+                new MethodCall(5, "Class2", "TestCase2"),
+                new MethodCall(1, "Class2", "TestCase1"),
+        };
+
+        ExecutionData result;
+        try (Collector collector = new Collector()) {
+            send(collector, TestUtils.asInputStream(text));
+            send(collector, TestUtils.asBinaryInputStream(binary));
+            result = collector.finish();
+        }
+
+        assertEquals(2, result.getAllTargetMethods().size());
+        assertEquals(2, result.getAllTestCases().size());
+        Range depth = result.getTargetMethod("Class2").depthOfCall("TestCase1");
+        assertEquals(1, depth.min());
+        assertEquals(2, depth.max());
+    }
+
+    @Test
+    void closesConnectionsThatDoNotCloseInTime() throws Exception {
+        try (Collector collector = new Collector();
+                Socket socket = new Socket("localhost", collector.port())) {
+            socket.getOutputStream().write(TestUtils.asInputStream(new MethodCall[] {
+                    new MethodCall(1, "Class1", "TestCase1")}).readAllBytes());
+
+            IOException e = assertThrows(IOException.class,
+                    () -> collector.finish(Duration.ofMillis(100)));
+            assertTrue(e.getMessage().contains("did not close"), e.getMessage());
+        }
+    }
+
+    private void send(Collector collector, InputStream source) throws IOException {
+        try (Socket socket = new Socket("localhost", collector.port());
+                OutputStream out = socket.getOutputStream()) {
+            source.transferTo(out);
+        }
+    }
+}
@@ -293,6 +293,16 @@ class PropertiesTest {
         assertTrue(properties.shouldInstrument());
     }
 
+    @Test
+    void canParseCollect() {
+        String[] args = {
+                "--collect", "true",
+        };
+        Properties properties = new Properties();
+        properties.parse(args);
+        assertTrue(properties.shouldCollect());
+    }
+
     @Test
     void canSetDepthLimit() {
         Properties properties = new Properties();
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.matrixer.core.util.Range;
+
+class RecordParserTest {
+
+    @Test
+    void parsesSingleAndAggregatedCalls() {
+        ExecutionData data = parse("3#Class1#TestCase1\n2#Class2#TestCase1#7#4\n");
+
+        assertEquals(2, data.getAllTargetMethods().size());
+        assertEquals(1, data.getAllTestCases().size());
+        Range depth = data.getTargetMethod("Class2").depthOfCall("TestCase1");
+        assertEquals(2, depth.min());
+        assertEquals(7, depth.max());
+    }
+
+    @Test
+    void skipsBlankAndUnwrittenLines() {
+        ExecutionData data = parse("1#Class1#TestCase1\r\n\n  \n\0\0\0002#Class2#TestCase2\n\0\0");
+
+        assertEquals(2, data.getAllTargetMethods().size());
+        assertTrue(data.getAllTestCases().contains("TestCase1"));
+        assertTrue(data.getAllTestCases().contains("TestCase2"));
+    }
+
+    @Test
+    void returnsSameNameForSameBytes() {
+        ByteBuffer buffer = bytes("Class1#Class1#Class2");
+        RecordParser parser = new RecordParser(new ExecutionData());
+
+        String first = parser.intern(buffer, 0, 6);
+        String second = parser.intern(buffer, 7, 13);
+
+        assertEquals("Class1", first);
+        assertSame(first, second);
+        assertEquals("Class2", parser.intern(buffer, 14, 20));
+    }
+
+    @Test
+    void internsManyNames() {
+        RecordParser parser = new RecordParser(new ExecutionData());
+        for (int i = 0; i < 5000; i++) {
+            String name = "Class" + i;
+            assertEquals(name, parser.intern(bytes(name), 0, name.length()));
+        }
+        assertSame(parser.intern(bytes("Class42"), 0, 7), parser.intern(bytes("Class42"), 0, 7));
+    }
+
+    @Test
+    void rejectsBadLines() {
+        assertThrows(IllegalArgumentException.class, () -> parse("1#Class1\n"));
+        assertThrows(IllegalArgumentException.class, () -> parse("x#Class1#TestCase1\n"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1#Class1#TestCase1#2\n"));
+        assertThrows(IllegalArgumentException.class, () -> parse("99999999999#C#T\n"));
+    }
+
+    private ExecutionData parse(String text) {
+        ExecutionData data = new ExecutionData();
+        new RecordParser(data).parse(bytes(text));
+        return data;
+    }
+
+    private ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
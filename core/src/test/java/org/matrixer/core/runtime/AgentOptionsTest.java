@@ -19,6 +19,8 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.jupiter.api.Test;
 
@@ -34,6 +36,25 @@ class AgentOptionsTest {
         assertEquals("", options.getTestPackage());
         assertEquals(false, options.getDebug());
         assertEquals(0, options.getDepthLimit());
+        assertEquals(false, options.getAsync());
+        assertEquals(AgentOptions.DEFAULT_FLUSH_INTERVAL, options.getFlushInterval());
+        assertEquals(AgentOptions.FORMAT_TEXT, options.getFormat());
+        assertEquals(AgentOptions.COMPRESSION_NONE, options.getCompression());
+        assertEquals(AgentOptions.OUTPUT_FILE, options.getOutput());
+        assertEquals(0, options.getSampleLimit());
+        assertEquals(1, options.getSampleRate());
+        assertEquals(Set.of(), options.getFilters());
+        assertEquals(0, options.getMinSize());
+        assertEquals(List.of(), options.getIncludes());
+        assertEquals(List.of(), options.getExcludes());
+        assertEquals(false, options.getCache());
+        assertEquals(AgentOptions.FRAMES_PRESERVE, options.getFrames());
+        assertEquals(false, options.getPropagate());
+        assertEquals(false, options.getFixtures());
+        assertEquals(AgentOptions.MODE_DEPTH, options.getMode());
+        assertEquals(false, options.getSwitchable());
+        assertEquals(false, options.getRetransform());
+        assertEquals(false, options.getDetach());
 
         assertEquals("", options.toString());
     }
@@ -119,6 +140,154 @@ class AgentOptionsTest {
         assertEquals(depth, options.getDepthLimit());
     }
 
+    @Test
+    void testGetAsync() {
+        AgentOptions options = new AgentOptions("async=true,flushInterval=250");
+        assertEquals(true, options.getAsync());
+        assertEquals(250, options.getFlushInterval());
+    }
+
+    @Test
+    void testGetFormat() {
+        AgentOptions options = new AgentOptions("format=binary");
+        assertEquals(AgentOptions.FORMAT_BINARY, options.getFormat());
+    }
+
+    @Test
+    void testInvalidFormat() {
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("format=xml"));
+    }
+
+    @Test
+    void testGetCompression() {
+        AgentOptions options = new AgentOptions("compression=gzip");
+        assertEquals(AgentOptions.COMPRESSION_GZIP, options.getCompression());
+    }
+
+    @Test
+    void testInvalidCompression() {
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("compression=lz4"));
+    }
+
+    @Test
+    void testGetOutput() {
+        AgentOptions options = new AgentOptions("output=mmap");
+        assertEquals(AgentOptions.OUTPUT_MMAP, options.getOutput());
+    }
+
+    @Test
+    void testMappedOutputRequiresText() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new AgentOptions("output=mmap,format=binary"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new AgentOptions("output=mmap,compression=gzip"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new AgentOptions("output=mmap,async=true"));
+    }
+
+    @Test
+    void testGetSampling() {
+        AgentOptions options = new AgentOptions("sampleLimit=10,sampleRate=100");
+        assertEquals(10, options.getSampleLimit());
+        assertEquals(100, options.getSampleRate());
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("sampleLimit=-1"));
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("sampleRate=0"));
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("sampleRate=x"));
+    }
+
+    @Test
+    void testGetFilters() {
+        AgentOptions options = new AgentOptions("filter=bridge:accessors,minSize=3");
+        assertEquals(Set.of("bridge", "accessors"), options.getFilters());
+        assertEquals(3, options.getMinSize());
+    }
+
+    @Test
+    void testInvalidFilter() {
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("filter=getters"));
+    }
+
+    @Test
+    void testGetIncludesAndExcludes() {
+        AgentOptions options = new AgentOptions("includes=org.a.*:org.b.*,excludes=org.a.gen.*");
+        assertEquals(List.of("org.a.*", "org.b.*"), options.getIncludes());
+        assertEquals(List.of("org.a.gen.*"), options.getExcludes());
+    }
+
+    @Test
+    void testGetCache() {
+        AgentOptions options = new AgentOptions("cache=true");
+        assertEquals(true, options.getCache());
+    }
+
+    @Test
+    void testGetFrames() {
+        AgentOptions options = new AgentOptions("frames=compute");
+        assertEquals(AgentOptions.FRAMES_COMPUTE, options.getFrames());
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("frames=none"));
+    }
+
+    @Test
+    void testGetPropagate() {
+        AgentOptions options = new AgentOptions("propagate=true");
+        assertEquals(true, options.getPropagate());
+    }
+
+    @Test
+    void testGetFixtures() {
+        AgentOptions options = new AgentOptions("fixtures=true");
+        assertEquals(true, options.getFixtures());
+    }
+
+    @Test
+    void testGetMode() {
+        AgentOptions options = new AgentOptions("mode=probes");
+        assertEquals(AgentOptions.MODE_PROBES, options.getMode());
+        assertEquals(AgentOptions.MODE_ENTRY, new AgentOptions("mode=entry").getMode());
+        assertThrows(IllegalArgumentException.class, () -> new AgentOptions("mode=fast"));
+    }
+
+    @Test
+    void testGetSwitchable() {
+        AgentOptions options = new AgentOptions("switchable=true");
+        assertEquals(true, options.getSwitchable());
+        assertThrows(IllegalArgumentException.class,
+                () -> new AgentOptions("switchable=true,mode=probes"));
+    }
+
+    @Test
+    void testGetRetransform() {
+        AgentOptions options = new AgentOptions("retransform=true,mode=entry");
+        assertEquals(true, options.getRetransform());
+        assertThrows(IllegalArgumentException.class,
+                () -> new AgentOptions("retransform=true,mode=probes"));
+    }
+
+    @Test
+    void testGetDetach() {
+        AgentOptions options = new AgentOptions("detach=true");
+        assertEquals(true, options.getDetach());
+    }
+
+    @Test
+    void replacesPlaceholdersInDestFilename() {
+        AgentOptions options = new AgentOptions("destfile=/out/results-{pid}-{fork}.txt");
+        assertEquals("/out/results-12-3.txt", options.getDestFilename(12, "3"));
+        assertEquals("/out/results-12-12.txt", options.getDestFilename(12, null));
+        assertEquals("/out/results-{pid}-{fork}.txt", options.getDestFilename());
+    }
+
+    @Test
+    void testGetAddress() {
+        AgentOptions options = new AgentOptions("output=socket,address=127.0.0.1:4711");
+        assertEquals(AgentOptions.OUTPUT_SOCKET, options.getOutput());
+        assertEquals("127.0.0.1", options.getHost());
+        assertEquals(4711, options.getPort());
+        assertEquals(AgentOptions.DEFAULT_ADDRESS, new AgentOptions().getAddress());
+        assertThrows(IllegalArgumentException.class,
+                () -> new AgentOptions("output=socket,address=localhost"));
+    }
+
     @Test
     void testInvalidOption() {
         assertThrows(IllegalArgumentException.class, () -> new AgentOptions("eggs=true"));
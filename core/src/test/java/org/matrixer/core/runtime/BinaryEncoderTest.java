@@ -0,0 +1,92 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core.runtime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BinaryEncoderTest {
+
+    @Test
+    void decodesEncodedCalls() throws IOException {
+        List<MethodCall> calls = List.of(
+                new MethodCall(1, "pkg.Class.method(I)V", "pkg.Test.test"),
+                new MethodCall(300, "pkg.Class.method(I)V", "pkg.Test.other", 100_000, 1L << 40),
+                new MethodCall(2, "pkg.Ünicode.método()V", "pkg.Test.test"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = new BinaryEncoder(out);
+        for (var call : calls) {
+            encoder.write(call);
+        }
+
+        assertEquals(calls, decode(out.toByteArray()));
+    }
+
+    @Test
+    void namesAreWrittenOnce() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = new BinaryEncoder(out);
+        String name = "pkg.SomeClass.someLongMethodName(Ljava/lang/String;)V";
+        for (int i = 0; i < 100; i++) {
+            encoder.write(new MethodCall(1, name, "pkg.Test.test"));
+        }
+        assertTrue(out.size() < 2 * name.length() + 100 * 6, "Names were repeated");
+    }
+
+    @Test
+    void decodesAppendedSections() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryEncoder(out).write(new MethodCall(1, "First", "Test1"));
+        new BinaryEncoder(out).write(new MethodCall(2, "Second", "Test2"));
+
+        List<MethodCall> expected = List.of(
+                new MethodCall(1, "First", "Test1"),
+                new MethodCall(2, "Second", "Test2"));
+        assertEquals(expected, decode(out.toByteArray()));
+    }
+
+    @Test
+    void rejectsTextStream() {
+        InputStream in = new ByteArrayInputStream("1#method#test\n".getBytes());
+        assertThrows(IOException.class, () -> new BinaryDecoder(in));
+    }
+
+    @Test
+    void rejectsTruncatedStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryEncoder(out).write(new MethodCall(1, "Method", "Test"));
+        byte[] bytes = out.toByteArray();
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        assertThrows(EOFException.class, () -> decode(truncated));
+    }
+
+    List<MethodCall> decode(byte[] bytes) throws IOException {
+        BinaryDecoder decoder = new BinaryDecoder(new ByteArrayInputStream(bytes));
+        List<MethodCall> calls = new ArrayList<>();
+        MethodCall call;
+        while ((call = decoder.next()) != null) {
+            calls.add(call);
+        }
+        return calls;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2021 Patrik Bogren, Isak Kristola
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrixer.core.runtime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.jupiter.api.Test;
+
+class LoggerTest {
+
+    @Test
+    void noopLoggerDoesNotBuildMessages() {
+        Logger logger = new NoopLogger();
+        assertFalse(logger.isLogEnabled());
+        assertFalse(logger.isErrorEnabled());
+        logger.log(() -> fail("Message built"));
+        logger.logError(() -> fail("Error message built"));
+    }
+
+    @Test
+    void printLoggerBuildsMessages() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Logger logger = new PrintLogger(new PrintStream(out), "[Test]");
+        assertTrue(logger.isLogEnabled());
+        logger.log(() -> "message");
+        logger.logError(() -> "error");
+
+        String output = out.toString();
+        assertTrue(output.contains("[Test]:INFO: message"), output);
+        assertTrue(output.contains("[Test]:ERROR: error"), output);
+    }
+}
@@ -49,6 +49,32 @@ class MethodCallTest {
         assertThrows(IllegalArgumentException.class, () -> new MethodCall(line));
     }
 
+    @Test
+    void parseAggregatedMethodCall() {
+        String line = "2" + sep + "Amethod" + sep + "SomeCaller" + sep + "7" + sep + "1000";
+
+        MethodCall call = new MethodCall(line);
+        assertEquals(2, call.depth, "Depth not correct");
+        assertEquals(7, call.maxDepth, "Max depth not correct");
+        assertEquals(1000, call.count, "Count not correct");
+    }
+
+    @Test
+    void singleCallIsNotAggregate() {
+        MethodCall call = new MethodCall("42" + sep + "method" + sep + "testcase");
+        assertEquals(42, call.maxDepth);
+        assertEquals(1, call.count);
+    }
+
+    @Test
+    void writeAggregatedCallAsLine() {
+        MethodCall expected = new MethodCall(3, "TheMethod", "TheCaller", 9, 12);
+        String line = expected.asLine();
+
+        MethodCall actual = new MethodCall(line);
+        assertEquals(expected, actual);
+    }
+
     @Test
     void writeCallAsLine() {
         MethodCall expected = new MethodCall(555, "TheMethod", "TheCaller");
@@ -20,6 +20,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 
+import org.matrixer.core.runtime.BinaryEncoder;
 import org.matrixer.core.runtime.MethodCall;
 import org.matrixer.core.util.FileUtils;
 
@@ -82,6 +83,19 @@ public class TestUtils {
         return asInputStream(data);
     }
 
+    public static InputStream asBinaryInputStream(MethodCall[] calls) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            BinaryEncoder encoder = new BinaryEncoder(out);
+            for (var call : calls) {
+                encoder.write(call);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
     public static String asRawString(MethodCall[] calls) {
         StringBuilder builder = new StringBuilder();
         for (var call : calls) {
@@ -112,6 +112,33 @@ public class TextSummaryReporterTest {
         assertContains(out.toString(), "Average stack depth: 8.3\n");
     }
 
+    @Test
+    void aggregatedCallsReportSameStatistics() {
+        MethodCall[] calls = new MethodCall[] {
+                new MethodCall(1, "ClassA", "TestCase1"),
+                new MethodCall(1, "ClassA", "TestCase1"),
+                new MethodCall(1, "ClassA", "TestCase1"),
+                new MethodCall(2, "ClassA", "TestCase1"),
+                new MethodCall(5, "ClassA", "TestCase1"),
+                new MethodCall(2, "ClassB", "TestCase2"),
+                new MethodCall(2, "ClassB", "TestCase2"),
+                new MethodCall(7, "ClassB", "TestCase2"),
+        };
+        MethodCall[] aggregated = new MethodCall[] {
+                new MethodCall(1, "ClassA", "TestCase1", 1, 3),
+                new MethodCall(2, "ClassA", "TestCase1"),
+                new MethodCall(5, "ClassA", "TestCase1"),
+                new MethodCall(2, "ClassB", "TestCase2", 2, 2),
+                new MethodCall(7, "ClassB", "TestCase2"),
+        };
+
+        String expected = report(new Analyzer().analyze(asInputStream(calls)));
+        String actual = report(new Analyzer().analyze(asInputStream(aggregated)));
+
+        assertContains(expected, "Average stack depth: 2.6");
+        assertEquals(expected, actual);
+    }
+
     @Test
     void calcMedianEvenElements() {
         var reporter = new TextSummaryReporter(null);
@@ -144,6 +171,12 @@ public class TextSummaryReporterTest {
         assertEquals(3, reporter.calcMedian(ints));
     }
 
+    String report(ExecutionData data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextSummaryReporter(data).reportTo(new PrintStream(out));
+        return out.toString();
+    }
+
     void assertContains(String haystack, String needle) {
         assertTrue(haystack.contains(needle), "\n==== output ===\n" + haystack
                 + "\n=== did not contain ===\n" + needle + "\n===\n");